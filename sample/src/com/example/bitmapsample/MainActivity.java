@@ -28,6 +28,9 @@ import android.widget.ListView;
 
 import com.android.bitmap.BitmapCache;
 import com.android.bitmap.DecodeAggregator;
+import com.android.bitmap.FrameDispatcher;
+import com.android.bitmap.MetadataCache;
+import com.android.bitmap.ScrollThrottle;
 import com.android.bitmap.UnrefedBitmapCache;
 import com.android.bitmap.drawable.ExtendedBitmapDrawable;
 import com.android.bitmap.drawable.ExtendedBitmapDrawable.ExtendedOptions;
@@ -37,12 +40,20 @@ public class MainActivity extends Activity {
     private ListView mListView;
     private final BitmapCache mCache = new UnrefedBitmapCache(TARGET_CACHE_SIZE_BYTES, 0, 0);
     private final DecodeAggregator mDecodeAggregator = new DecodeAggregator();
+    private final MetadataCache mMetadataCache = new MetadataCache(METADATA_CACHE_CAPACITY);
+    private final ScrollThrottle mScrollThrottle = new ScrollThrottle();
 
     private static Drawable PLACEHOLDER;
     private static Drawable PROGRESS;
 
     private static final float NORMAL_PARALLAX_MULTIPLIER = 1.5f;
     private static final int TARGET_CACHE_SIZE_BYTES = 5 * 1024 * 1024;
+    private static final int METADATA_CACHE_CAPACITY = 100;
+    // Let a slow image hold up at most 4 finished images below it, for at most half a second.
+    private static final int ORDERING_WINDOW_TASKS = 4;
+    private static final long ORDERING_WINDOW_MS = 500;
+    // Show at most 2 images per frame when a slow image releases the ones held up below it.
+    private static final int RELEASES_PER_FRAME = 2;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -55,8 +66,13 @@ public class MainActivity extends Activity {
             PROGRESS = res.getDrawable(R.drawable.progress);
         }
 
+        mDecodeAggregator.setOrderingWindow(ORDERING_WINDOW_TASKS, ORDERING_WINDOW_MS);
+        mDecodeAggregator.setReleaseExecutor(new FrameDispatcher(
+                FrameDispatcher.DEFAULT_FRAME_BUDGET_MS, RELEASES_PER_FRAME));
+
         mListView = (ListView) findViewById(R.id.list);
         mListView.setAdapter(new MyAdapter());
+        mListView.setOnScrollListener(mScrollThrottle);
     }
 
     private class MyAdapter extends BaseAdapter {
@@ -117,6 +133,8 @@ public class MainActivity extends Activity {
                 opts.backgroundColor = Color.LTGRAY;
                 final ExtendedBitmapDrawable drawable = new ExtendedBitmapDrawable(getResources(),
                         mCache, true /* limit density */, opts);
+                drawable.setMetadataCache(mMetadataCache);
+                drawable.setScrollThrottle(mScrollThrottle);
 
                 v.setTypedDrawable(drawable);
                 v.setListView(mListView);
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A decode executor that resizes its thread pool based on measured decode latency, with additive
+ * increase / multiplicative decrease (AIMD) feedback.
+ * <p/>
+ * Every {@link DecodeFuture} run is split into two stages: I/O (opening the source, reading its
+ * headers and acquiring a bitmap) and the CPU bound pixel decode, which is timed around the
+ * decoder calls alone. After each window of decodes, the pixel decode time per decoded pixel is
+ * compared to the lowest seen so far, so that a mix of image sizes does not look like contention.
+ * Pixel decodes only get slower per pixel when there are more busy threads than cores to run
+ * them, so:
+ * <ul>
+ * <li>if the latency is within tolerance of the baseline, the target thread count grows by one,
+ * up to the maximum. I/O bound workloads, e.g. network sources, keep growing the pool.</li>
+ * <li>otherwise the cores are oversubscribed and the target shrinks by a quarter, down to the
+ * minimum.</li>
+ * </ul>
+ * The baseline slowly follows the observed latency so that a change in the sources, e.g. larger
+ * images, is not mistaken for contention forever.
+ * <p/>
+ * The current target and a bounded history of windows are exposed for diagnostics.
+ */
+public class AdaptiveDecodeExecutor implements Executor {
+
+    /**
+     * The number of decodes per measurement window.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 8;
+    /**
+     * The number of windows to keep in the history.
+     */
+    public static final int HISTORY_SIZE = 32;
+
+    /**
+     * How much slower than the baseline the pixel decodes may get before we back off.
+     */
+    private static final float LATENCY_TOLERANCE = 0.25f;
+    private static final float DECREASE_FACTOR = 0.75f;
+    /**
+     * The fraction of the difference by which the baseline follows slower windows.
+     */
+    private static final float BASELINE_DRIFT = 1f / 16;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mMinThreads;
+    private final int mMaxThreads;
+    private final int mWindowSize;
+
+    private final Object mLock = new Object();
+    private int mTarget;
+    private long mBaselineNanos = Long.MAX_VALUE;
+    private int mWindowCount;
+    private long mWindowStartMs;
+    private long mWindowIoNanos;
+    private long mWindowPixelNanos;
+    private long mWindowPixels;
+    private final Window[] mHistory = new Window[HISTORY_SIZE];
+    private int mHistoryCount;
+
+    private static final String TAG = AdaptiveDecodeExecutor.class.getSimpleName();
+    private static final boolean DEBUG = DecodeTask.DEBUG;
+
+    /**
+     * Create a new AdaptiveDecodeExecutor.
+     *
+     * @param minThreads     The minimum number of decode threads.
+     * @param maxThreads     The maximum number of decode threads.
+     * @param initialThreads The number of decode threads to start with.
+     * @param queueCapacity  The capacity of the work queue. When it is full, threads are added
+     *                       up to maxThreads regardless of the target, as with
+     *                       {@link ThreadPoolExecutor}.
+     * @param threadName     The base name of the decode threads.
+     */
+    public AdaptiveDecodeExecutor(final int minThreads, final int maxThreads,
+            final int initialThreads, final int queueCapacity, final String threadName) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("invalid thread bounds");
+        }
+        mMinThreads = minThreads;
+        mMaxThreads = maxThreads;
+        mWindowSize = DEFAULT_WINDOW_SIZE;
+        mTarget = Math.max(minThreads, Math.min(maxThreads, initialThreads));
+        mExecutor = new ThreadPoolExecutor(mTarget, maxThreads, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity),
+                new NamedThreadFactory(threadName));
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (!(command instanceof DecodeFuture)) {
+            mExecutor.execute(command);
+            return;
+        }
+        final DecodeFuture future = (DecodeFuture) command;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                future.run();
+                final Decoder decoder = future.getDecoder();
+                final long pixels = decoder.getDecodedPixels();
+                // Runs that were parked or deferred, or decodes cancelled early, tell us nothing.
+                if (pixels > 0) {
+                    record(decoder.getIoNanos(), decoder.getPixelDecodeNanos(), pixels);
+                }
+            }
+        });
+    }
+
+    private void record(final long ioNanos, final long pixelNanos, final long pixels) {
+        final int newTarget;
+        synchronized (mLock) {
+            if (mWindowCount == 0) {
+                mWindowStartMs = SystemClock.uptimeMillis();
+            }
+            mWindowIoNanos += ioNanos;
+            mWindowPixelNanos += pixelNanos;
+            mWindowPixels += pixels;
+            if (++mWindowCount < mWindowSize) {
+                return;
+            }
+
+            // Per million pixels decoded.
+            final long meanPixelNanos = mWindowPixelNanos * 1000000 / mWindowPixels;
+            final long elapsedMs = Math.max(1, SystemClock.uptimeMillis() - mWindowStartMs);
+            final int oldTarget = mTarget;
+            if (meanPixelNanos < mBaselineNanos) {
+                mBaselineNanos = meanPixelNanos;
+            } else {
+                mBaselineNanos += (long) ((meanPixelNanos - mBaselineNanos) * BASELINE_DRIFT);
+            }
+            if (meanPixelNanos <= mBaselineNanos * (1 + LATENCY_TOLERANCE)) {
+                mTarget = Math.min(mMaxThreads, mTarget + 1);
+            } else {
+                mTarget = Math.max(mMinThreads, (int) (mTarget * DECREASE_FACTOR));
+            }
+
+            final Window window = new Window(SystemClock.uptimeMillis(), mTarget,
+                    mWindowCount * 1000f / elapsedMs,
+                    TimeUnit.NANOSECONDS.toMicros(mWindowIoNanos / mWindowCount),
+                    TimeUnit.NANOSECONDS.toMicros(meanPixelNanos));
+            mHistory[mHistoryCount % HISTORY_SIZE] = window;
+            mHistoryCount++;
+            mWindowCount = 0;
+            mWindowIoNanos = 0;
+            mWindowPixelNanos = 0;
+            mWindowPixels = 0;
+
+            if (DEBUG) {
+                Log.d(TAG, "target " + oldTarget + " -> " + mTarget + " " + window);
+            }
+            if (mTarget == oldTarget) {
+                return;
+            }
+            newTarget = mTarget;
+        }
+        mExecutor.setCorePoolSize(newTarget);
+    }
+
+    /**
+     * @return The current target number of decode threads.
+     */
+    public int getTarget() {
+        synchronized (mLock) {
+            return mTarget;
+        }
+    }
+
+    /**
+     * @return The most recent measurement windows, oldest first.
+     */
+    public List<Window> getHistory() {
+        synchronized (mLock) {
+            final int count = Math.min(mHistoryCount, HISTORY_SIZE);
+            final List<Window> history = new ArrayList<Window>(count);
+            for (int i = mHistoryCount - count; i < mHistoryCount; i++) {
+                history.add(mHistory[i % HISTORY_SIZE]);
+            }
+            return history;
+        }
+    }
+
+    public String toDebugString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("AdaptiveDecodeExecutor target=").append(getTarget())
+                .append(" active=").append(mExecutor.getActiveCount())
+                .append(" queued=").append(mExecutor.getQueue().size()).append('\n');
+        for (Window window : getHistory()) {
+            sb.append("  ").append(window).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The measurements of one window of decodes.
+     */
+    public static class Window {
+        /**
+         * The end of the window, in {@link SystemClock#uptimeMillis()} time.
+         */
+        public final long timeMs;
+        /**
+         * The target number of threads chosen at the end of the window.
+         */
+        public final int target;
+        /**
+         * Completed decodes per second.
+         */
+        public final float throughput;
+        /**
+         * The mean time spent on I/O, headers and bitmap acquisition per decode.
+         */
+        public final long meanIoMicros;
+        /**
+         * The time spent decoding pixels per million decoded pixels.
+         */
+        public final long pixelDecodeMicrosPerMegapixel;
+
+        Window(final long timeMs, final int target, final float throughput,
+                final long meanIoMicros, final long pixelDecodeMicrosPerMegapixel) {
+            this.timeMs = timeMs;
+            this.target = target;
+            this.throughput = throughput;
+            this.meanIoMicros = meanIoMicros;
+            this.pixelDecodeMicrosPerMegapixel = pixelDecodeMicrosPerMegapixel;
+        }
+
+        @Override
+        public String toString() {
+            return "Window[t=" + timeMs + " target=" + target + " throughput=" + throughput
+                    + "/s io=" + meanIoMicros + "us pixels=" + pixelDecodeMicrosPerMegapixel + "us/MP]";
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+/**
+ * A snapshot of the queue of a {@link ContiguousFIFOAggregator} and of the hold times of its
+ * tasks, obtained with {@link ContiguousFIFOAggregator#getStats()}. The hold time of a task is the
+ * time between {@link ContiguousFIFOAggregator#execute(Object, Runnable)} and the task actually
+ * running, i.e. the latency added by ordering.
+ * <p/>
+ * Hold times are counted in a histogram of buckets with fixed upper bounds, from 0ms (tasks that
+ * ran right away) to a last, unbounded bucket.
+ */
+public class AggregatorStats {
+
+    private static final long[] BUCKET_BOUNDS_MS = new long[] {
+            0, 16, 33, 66, 133, 266, 533, 1066, 2133
+    };
+
+    static final int BUCKET_COUNT = BUCKET_BOUNDS_MS.length + 1;
+
+    /**
+     * The number of keys expected when the snapshot was taken.
+     */
+    public final int expectedCount;
+    /**
+     * The number of expected keys with a stored task, waiting for keys expected before them.
+     */
+    public final int heldCount;
+    /**
+     * The number of tasks run in order.
+     */
+    public final long executedCount;
+    /**
+     * The number of tasks run out of order by the ordering window.
+     */
+    public final long releasedCount;
+    /**
+     * The number of keys skipped after their deadline.
+     */
+    public final long skippedCount;
+    /**
+     * The sum of the hold times of all tasks run, in milliseconds.
+     */
+    public final long totalHoldMs;
+    /**
+     * The longest hold time of any task run, in milliseconds.
+     */
+    public final long longestHoldMs;
+
+    private final long[] mHistogram;
+
+    AggregatorStats(final int expectedCount, final int heldCount, final long executedCount,
+            final long releasedCount, final long skippedCount, final long totalHoldMs,
+            final long longestHoldMs, final long[] histogram) {
+        this.expectedCount = expectedCount;
+        this.heldCount = heldCount;
+        this.executedCount = executedCount;
+        this.releasedCount = releasedCount;
+        this.skippedCount = skippedCount;
+        this.totalHoldMs = totalHoldMs;
+        this.longestHoldMs = longestHoldMs;
+        mHistogram = histogram;
+    }
+
+    /**
+     * @return The histogram bucket to count the given hold time in.
+     */
+    static int getBucket(final long holdMs) {
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            if (holdMs <= BUCKET_BOUNDS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MS.length;
+    }
+
+    public int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    /**
+     * @return The inclusive upper bound of the given bucket in milliseconds, or
+     * {@link Long#MAX_VALUE} for the last bucket.
+     */
+    public long getBucketUpperBoundMs(final int bucket) {
+        return bucket < BUCKET_BOUNDS_MS.length ? BUCKET_BOUNDS_MS[bucket] : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return The number of tasks whose hold time fell in the given bucket.
+     */
+    public long getCountInBucket(final int bucket) {
+        return mHistogram[bucket];
+    }
+
+    /**
+     * @return The mean hold time of all tasks run, in milliseconds.
+     */
+    public long getMeanHoldMs() {
+        final long count = executedCount + releasedCount;
+        return count > 0 ? totalHoldMs / count : 0;
+    }
+
+    /**
+     * @param fraction The fraction of tasks, from 0 to 1, e.g. 0.9 for the 90th percentile.
+     * @return The upper bound of the bucket that contains the given percentile of hold times,
+     * or 0 if no task has run.
+     */
+    public long getPercentileHoldMs(final float fraction) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mHistogram[i];
+        }
+        final long target = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mHistogram[i];
+            if (seen >= target && seen > 0) {
+                return getBucketUpperBoundMs(i);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("AggregatorStats[expected=");
+        sb.append(expectedCount).append(" held=").append(heldCount)
+                .append(" executed=").append(executedCount)
+                .append(" released=").append(releasedCount)
+                .append(" skipped=").append(skippedCount)
+                .append(" meanHold=").append(getMeanHoldMs()).append("ms")
+                .append(" longestHold=").append(longestHoldMs).append("ms holds={");
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            final long bound = getBucketUpperBoundMs(i);
+            sb.append("<=").append(bound == Long.MAX_VALUE ? "inf" : String.valueOf(bound))
+                    .append(':').append(mHistogram[i]);
+        }
+        sb.append("}]");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import java.util.Collection;
+
+/**
+ * A {@link BitmapCache} whose pool can also be polled without blocking a thread. Decodes use
+ * these methods when the cache implements this interface, and fall back to {@link #poll()}
+ * otherwise.
+ */
+public interface AsyncBitmapCache extends BitmapCache {
+
+    /**
+     * Remove up to maxCount bitmaps from the pool in a single operation, for callers that know
+     * they are about to need several of them. This never blocks.
+     *
+     * @param maxCount the maximum number of bitmaps to remove.
+     * @param out      the collection to add the removed bitmaps to.
+     * @return the number of bitmaps added to out.
+     */
+    int poll(int maxCount, Collection<? super ReusableBitmap> out);
+
+    /**
+     * Take a reusable bitmap from the pool without blocking the calling thread. If the pool has a
+     * bitmap, or if the cache is not blocking, the callback is run right away on the calling
+     * thread with the result of {@link #poll()}. Otherwise the callback is parked until a bitmap
+     * is offered, and then run on the offering thread with that bitmap; or until
+     * {@link #setBlocking(false)} is called, and then run on that thread with what the pool has,
+     * possibly null.
+     * <p/>
+     * Callbacks run outside of the cache's locks and should return quickly.
+     */
+    void pollAsync(PollCallback callback);
+
+    /**
+     * Remove a callback parked by {@link #pollAsync(PollCallback)}.
+     *
+     * @return true if the callback was still parked and will not be run.
+     */
+    boolean cancelPoll(PollCallback callback);
+
+    /**
+     * Receives the result of {@link #pollAsync(PollCallback)}.
+     */
+    interface PollCallback {
+
+        /**
+         * @param bitmap The bitmap taken from the pool, owned by the callback, or null if none
+         *               was available.
+         */
+        void onPolled(ReusableBitmap bitmap);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import com.android.bitmap.DecodeTask.DecodeCallback;
+import com.android.bitmap.DecodeTask.DecodeOptions;
+import com.android.bitmap.RequestKey.Cancelable;
+import com.android.bitmap.RequestKey.FileDescriptorFactory;
+import com.android.bitmap.util.Trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Decodes many requests at once, e.g. when a grid of images first appears on screen. Compared to
+ * running one {@link DecodeTask} per request, a batch:
+ * <ul>
+ * <li>takes a reusable bitmap from the pool only when a worker starts a request, so that queued
+ * requests never hold one idle. If the cache is an {@link AsyncBitmapCache} and the pool is
+ * empty, the request waits for a bitmap without holding the worker,</li>
+ * <li>hops onto the executor once per worker instead of once per request, and</li>
+ * <li>delivers all {@link DecodeCallback} events through a {@link FrameDispatcher}, so that
+ * completions reach the UI thread in coalesced batches, once per frame.</li>
+ * </ul>
+ * The results are placed in the cache exactly as {@link DecodeTask} would.
+ * <p/>
+ * A BatchDecoder must be created on the UI thread. {@link #decode(List)} should be called from
+ * the UI thread.
+ */
+public class BatchDecoder {
+
+    private final BitmapCache mCache;
+    private final Executor mExecutor;
+    private final int mParallelism;
+    private final FrameDispatcher mDispatcher;
+
+    private static final String TAG = BatchDecoder.class.getSimpleName();
+    private static final boolean DEBUG = DecodeTask.DEBUG;
+
+    /**
+     * Create a new BatchDecoder.
+     *
+     * @param cache       The cache and pool.
+     * @param executor    The executor to run the decode workers on.
+     * @param parallelism The maximum number of workers to run at once for each batch.
+     */
+    public BatchDecoder(final BitmapCache cache, final Executor executor, final int parallelism) {
+        this(cache, executor, parallelism, new FrameDispatcher());
+    }
+
+    /**
+     * Create a new BatchDecoder that delivers its events through the given dispatcher.
+     */
+    public BatchDecoder(final BitmapCache cache, final Executor executor, final int parallelism,
+            final FrameDispatcher dispatcher) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        mCache = cache;
+        mExecutor = executor;
+        mParallelism = parallelism;
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * Decode all the given requests. Each request may be cancelled individually with
+     * {@link Request#cancel()}.
+     *
+     * @return A Cancelable that cancels every request of the batch that has not completed yet.
+     */
+    public Cancelable decode(final List<Request> requests) {
+        Trace.beginSection("batch decode");
+        final List<DecodeFuture> futures = new ArrayList<DecodeFuture>(requests.size());
+        for (Request request : requests) {
+            final DecodeFuture future = request.start(mCache, mDispatcher);
+            future.setDecodeExecutor(mExecutor);
+            futures.add(future);
+        }
+        final Batch batch = new Batch(requests, futures);
+
+        final int workers = Math.min(mParallelism, requests.size());
+        for (int i = 0; i < workers; i++) {
+            mExecutor.execute(batch);
+        }
+        Trace.endSection();
+        return batch;
+    }
+
+    /**
+     * A single request in a batch.
+     */
+    public static class Request implements Cancelable {
+        public final RequestKey key;
+        public final DecodeOptions opts;
+        public final FileDescriptorFactory factory;
+        public final DecodeCallback callback;
+        private DecodeFuture mFuture;
+        private boolean mCancelled;
+
+        /**
+         * Create a new Request.
+         *
+         * @param key      The request to decode, also the key to use for the cache.
+         * @param opts     The decode options.
+         * @param factory  The factory to obtain file descriptors to decode from, or null to
+         *                 decode from key.createInputStream().
+         * @param callback The callback to notify of decode state changes.
+         */
+        public Request(final RequestKey key, final DecodeOptions opts,
+                final FileDescriptorFactory factory, final DecodeCallback callback) {
+            this.key = key;
+            this.opts = opts;
+            this.factory = factory;
+            this.callback = callback;
+        }
+
+        private synchronized DecodeFuture start(final BitmapCache cache,
+                final FrameDispatcher dispatcher) {
+            mFuture = new DecodeFuture(new Decoder(key, opts, factory, cache), callback,
+                    dispatcher);
+            if (mCancelled) {
+                mFuture.cancel();
+            }
+            return mFuture;
+        }
+
+        /**
+         * Cancel this request. If the decode has not completed yet,
+         * {@link DecodeCallback#onDecodeCancel(RequestKey)} will be called instead of
+         * {@link DecodeCallback#onDecodeComplete(RequestKey, ReusableBitmap)}.
+         */
+        @Override
+        public synchronized void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                mFuture.cancel();
+            }
+        }
+    }
+
+    /**
+     * The shared queue of a batch. Every worker runs this, taking requests until none are left.
+     */
+    private static class Batch implements Runnable, Cancelable {
+        private final List<Request> mRequests;
+        private final Queue<DecodeFuture> mPending;
+
+        Batch(final List<Request> requests, final List<DecodeFuture> futures) {
+            mRequests = requests;
+            mPending = new ConcurrentLinkedQueue<DecodeFuture>(futures);
+        }
+
+        @Override
+        public void run() {
+            DecodeFuture future;
+            while ((future = mPending.poll()) != null) {
+                // A cancelled future returns right away. Its cancel is delivered by cancel().
+                // Otherwise it takes its bitmap from the pool now. If it has to wait for one, it
+                // is resubmitted to the executor later and this worker moves on.
+                future.run();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            for (Request request : mRequests) {
+                request.cancel();
+            }
+        }
+    }
+}
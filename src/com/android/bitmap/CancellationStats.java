@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the work wasted by cancelled decodes, broken down by the phase of the decode in
+ * which the cancellation was noticed. A cancellation noticed in a late phase means that all the
+ * earlier phases were wasted.
+ * <p/>
+ * This class is thread safe.
+ */
+public class CancellationStats {
+
+    /**
+     * Cancelled before the decode started.
+     */
+    public static final int PHASE_QUEUED = 0;
+    /**
+     * Cancelled while opening the source.
+     */
+    public static final int PHASE_OPEN = 1;
+    /**
+     * Cancelled while reading the Exif orientation or the bounds.
+     */
+    public static final int PHASE_METADATA = 2;
+    /**
+     * Cancelled while taking a bitmap from the pool or allocating one.
+     */
+    public static final int PHASE_ALLOCATE = 3;
+    /**
+     * Cancelled while decoding pixels.
+     */
+    public static final int PHASE_DECODE = 4;
+    /**
+     * Cancelled after the decode finished. The result was discarded.
+     */
+    public static final int PHASE_DELIVER = 5;
+
+    private static final int PHASE_COUNT = 6;
+    private static final String[] PHASE_NAMES = new String[] {
+            "queued", "open", "metadata", "allocate", "decode", "deliver"
+    };
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(PHASE_COUNT);
+    private final AtomicLongArray mWastedNanos = new AtomicLongArray(PHASE_COUNT);
+    private final AtomicLong mPoolReturns = new AtomicLong();
+
+    void record(final int phase, final long wastedNanos) {
+        mCounts.incrementAndGet(phase);
+        mWastedNanos.addAndGet(phase, wastedNanos);
+    }
+
+    void recordPoolReturn() {
+        mPoolReturns.incrementAndGet();
+    }
+
+    /**
+     * @return The number of decodes cancelled in the given phase.
+     */
+    public long getCount(final int phase) {
+        return mCounts.get(phase);
+    }
+
+    /**
+     * @return The total decode thread time spent on decodes cancelled in the given phase, in
+     * milliseconds.
+     */
+    public long getWastedMillis(final int phase) {
+        return TimeUnit.NANOSECONDS.toMillis(mWastedNanos.get(phase));
+    }
+
+    /**
+     * @return The number of cancelled decodes.
+     */
+    public long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            total += mCounts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return The number of pooled bitmaps that cancelled decodes offered back to the pool.
+     */
+    public long getPoolReturns() {
+        return mPoolReturns.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mCounts.set(i, 0);
+            mWastedNanos.set(i, 0);
+        }
+        mPoolReturns.set(0);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("CancellationStats[");
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            sb.append(PHASE_NAMES[i]).append('=').append(getCount(i)).append('/')
+                    .append(getWastedMillis(i)).append("ms ");
+        }
+        sb.append("poolReturns=").append(getPoolReturns()).append(']');
+        return sb.toString();
+    }
+}
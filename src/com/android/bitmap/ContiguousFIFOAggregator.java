@@ -16,14 +16,25 @@
 
 package com.android.bitmap;
 
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.SparseArray;
 
 import com.android.bitmap.util.Trace;
 
-import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * An implementation of a task aggregator that executes tasks in the order that they are expected
@@ -52,11 +63,108 @@ import java.util.Queue;
  * happen if a task comes in for key <b>C</b> or if forget is called on key <b>C</b>.</li>
  * </ol>
  * <p/>
- * ContiguousFIFOAggregator is not thread safe.
+ * Strict ordering lets one slow key hold up every task behind it. To bound that delay, set an
+ * ordering window with {@link #setOrderingWindow(int, long)}: stored tasks beyond the window are
+ * executed out of order. Likewise, a key whose task never arrives, e.g. because its decode is
+ * stuck on I/O, can be skipped after a deadline with {@link #setKeyDeadline(long)}.
+ * <p/>
+ * For grids, keys may be expected with a (row, column) position using
+ * {@link #expect(Object, int, int, Callback)}. The keys of the same row then form a single unit,
+ * whatever order they were expected in: their tasks are stored until every key of the row has a
+ * task, and then run together, so that a row of cells appears at once. Rows are ordered by their
+ * first expected key. Use
+ * {@link #setRowSegmentColumns(int)} to split wide rows into segments that are released on their
+ * own.
+ * <p/>
+ * Tasks that become ready together, e.g. every stored task behind a slow key once its task
+ * arrives, run back-to-back by default. With {@link #setReleaseExecutor(Executor)} they are handed
+ * in order to an executor instead, such as a {@link FrameDispatcher} that spreads a burst over
+ * several frames.
+ * <p/>
+ * The depth of the queue and the time tasks are held for ordering are available at any time,
+ * from any thread, with {@link #getStats()}.
+ * <p/>
+ * Keys are compared with {@link Object#equals(Object)}, so distinct keys with equal hash codes
+ * are kept apart. Expecting, forgetting and executing a key take constant time.
+ * <p/>
+ * ContiguousFIFOAggregator is not thread safe, unless it is created with an owner executor. Then
+ * {@link #expect(Object, Callback)}, {@link #forget(Object)} and
+ * {@link #execute(Object, Runnable)} may be called from any thread, e.g. straight from decode
+ * workers. The calls are queued in an inbox and applied in order on the owner executor, in
+ * batches: a single runnable applies every call queued since the previous batch and runs the
+ * tasks that became ready. Callbacks and tasks then always run on the owner executor.
  */
 public class ContiguousFIFOAggregator<T> {
-    private final Queue<T> mExpected;
-    private final SparseArray<Value> mTasks;
+    /**
+     * The expected keys in the order they were expected, with their callbacks and tasks.
+     */
+    private final LinkedHashMap<T, Value> mExpected;
+    /**
+     * The expected keys that have a stored task, in the order the tasks were stored.
+     */
+    private final LinkedHashMap<T, Value> mHeld;
+    /**
+     * The expected keys with a row, by row and segment, each in the order they were expected.
+     */
+    private final HashMap<Long, LinkedHashSet<T>> mRows;
+
+    /**
+     * No limit, for {@link #setOrderingWindow(int, long)}.
+     */
+    public static final int NO_LIMIT = -1;
+
+    /**
+     * The row of keys expected without a position. Each such key is a unit of its own.
+     */
+    public static final int NO_ROW = -1;
+
+    private int mMaxHeldTasks = NO_LIMIT;
+    private long mMaxHoldMs = NO_LIMIT;
+    private long mKeyDeadlineMs = NO_LIMIT;
+    private int mRowSegmentColumns = Integer.MAX_VALUE;
+    private Handler mHandler;
+    private Executor mReleaseExecutor;
+
+    private final Runnable mReleaseExpiredRunnable = new Runnable() {
+        @Override
+        public void run() {
+            releaseExpired();
+        }
+    };
+
+    private final Runnable mSkipStalledRunnable = new Runnable() {
+        @Override
+        public void run() {
+            skipStalled();
+        }
+    };
+
+    /**
+     * The executor to apply queued calls on, or null if calls are applied right away.
+     */
+    private final Executor mOwnerExecutor;
+    private final Queue<Op<T>> mInbox;
+    private final AtomicBoolean mDrainScheduled;
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Statistics. Written on the thread the aggregator is used on, read from any thread.
+     */
+    private volatile int mExpectedCount;
+    private volatile int mHeldCount;
+    private final AtomicLong mExecutedCount = new AtomicLong();
+    private final AtomicLong mReleasedCount = new AtomicLong();
+    private final AtomicLong mSkippedCount = new AtomicLong();
+    private final AtomicLong mTotalHoldMs = new AtomicLong();
+    private final AtomicLong mLongestHoldMs = new AtomicLong();
+    private final AtomicLongArray mHoldHistogram =
+            new AtomicLongArray(AggregatorStats.BUCKET_COUNT);
 
     private static final String TAG = ContiguousFIFOAggregator.class.getSimpleName();
     private static final boolean DEBUG = false;
@@ -74,8 +182,103 @@ public class ContiguousFIFOAggregator<T> {
      * the maximum number of UI elements that you expect to show on the screen at any time.
      */
     public ContiguousFIFOAggregator() {
-        mExpected = new ArrayDeque<T>();
-        mTasks = new SparseArray<Value>();
+        this(null);
+    }
+
+    /**
+     * Create a new ContiguousFIFOAggregator that may be used from any thread.
+     *
+     * @param ownerExecutor The executor to apply calls and run callbacks and tasks on, e.g.
+     *                      {@link DecodeEngine#getMainThreadExecutor()}. It must run its
+     *                      runnables one at a time, in order. If null, the aggregator is not
+     *                      thread safe and applies calls right away.
+     */
+    public ContiguousFIFOAggregator(final Executor ownerExecutor) {
+        mExpected = new LinkedHashMap<T, Value>();
+        mHeld = new LinkedHashMap<T, Value>();
+        mRows = new HashMap<Long, LinkedHashSet<T>>();
+        mOwnerExecutor = ownerExecutor;
+        if (ownerExecutor != null) {
+            mInbox = new ConcurrentLinkedQueue<Op<T>>();
+            mDrainScheduled = new AtomicBoolean();
+        } else {
+            mInbox = null;
+            mDrainScheduled = null;
+        }
+    }
+
+    /**
+     * Bound the delay that strict ordering may add to stored tasks. By default, a stored task
+     * waits for the tasks of every key expected before it. With a window, ordering is only
+     * strict within the window, and stored tasks are executed out of order:
+     * <ul>
+     * <li>once more than maxHeldTasks tasks are stored, the task stored longest is executed.</li>
+     * <li>once a task has been stored for maxHoldMs milliseconds, it is executed.</li>
+     * </ul>
+     * A task executed out of order removes its key as usual, but since it is never the first
+     * expected key, no callback is notified.
+     * <p/>
+     * A time limit needs a {@link Handler}, so this must then be called on a Looper thread: the
+     * thread this aggregator is used on, or the thread of its owner executor.
+     *
+     * @param maxHeldTasks The maximum number of stored tasks, or {@link #NO_LIMIT}.
+     * @param maxHoldMs    The maximum time to store a task, or {@link #NO_LIMIT}.
+     */
+    public void setOrderingWindow(final int maxHeldTasks, final long maxHoldMs) {
+        mMaxHeldTasks = maxHeldTasks;
+        mMaxHoldMs = maxHoldMs;
+        if (maxHoldMs >= 0 && mHandler == null) {
+            mHandler = new Handler();
+        }
+        releaseOverflow();
+        releaseExpired();
+    }
+
+    /**
+     * Skip keys whose task does not arrive in time. Once the first expected key has been expected
+     * for deadlineMs milliseconds without a task, while tasks are stored behind it, it is removed
+     * as if forgotten: its callback is notified if it is a {@link SkipCallback}, and the
+     * tasks behind it may run. When its task arrives late, the key is no longer expected, so the
+     * task runs right away.
+     * <p/>
+     * A deadline needs a {@link Handler}, so this must be called on a Looper thread: the thread
+     * this aggregator is used on, or the thread of its owner executor.
+     *
+     * @param deadlineMs The maximum time to wait for the task of the first expected key, or
+     *                   {@link #NO_LIMIT}.
+     */
+    public void setKeyDeadline(final long deadlineMs) {
+        mKeyDeadlineMs = deadlineMs;
+        if (deadlineMs >= 0 && mHandler == null) {
+            mHandler = new Handler();
+        }
+        skipStalled();
+    }
+
+    /**
+     * Hand ready tasks to the given executor instead of running them right away. Tasks are handed
+     * over in the order they would have run, so an executor that runs its tasks in order, like a
+     * {@link FrameDispatcher}, keeps the display order while pacing the work, e.g. to a number of
+     * tasks or a time budget per frame.
+     * <p/>
+     * Keys are removed when their task is handed over, so a task may run after its key was
+     * expected again. Tasks must tolerate that, as they already must tolerate a stale key.
+     *
+     * @param releaseExecutor The executor to run tasks on, or null to run them right away.
+     */
+    public void setReleaseExecutor(final Executor releaseExecutor) {
+        mReleaseExecutor = releaseExecutor;
+    }
+
+    /**
+     * Split rows into segments of the given number of columns, each released on its own. Only
+     * affects keys expected afterwards.
+     */
+    public void setRowSegmentColumns(final int columns) {
+        if (columns < 1) {
+            throw new IllegalArgumentException("columns must be at least 1");
+        }
+        mRowSegmentColumns = columns;
     }
 
     /**
@@ -92,26 +295,58 @@ public class ContiguousFIFOAggregator<T> {
      * @param callback the callback to notify when the key becomes the first expected key, or null.
      */
     public void expect(final T key, final Callback<T> callback) {
+        expect(key, NO_ROW, 0, callback);
+    }
+
+    /**
+     * Declare a key to be expected in the future, at the given position in a grid. The keys of a
+     * row (or row segment) need not be expected one after the other; their tasks run together
+     * once they have all been given. Otherwise this is the same as
+     * {@link #expect(Object, Callback)}.
+     *
+     * @param row      the row of the key, or {@link #NO_ROW}.
+     * @param column   the column of the key.
+     * @param callback the callback to notify when the row of the key becomes the first expected
+     *                 row, or null.
+     */
+    public void expect(final T key, final int row, final int column, final Callback<T> callback) {
         if (key == null) {
             throw new IllegalArgumentException("Do not use null keys.");
         }
 
+        if (mInbox != null) {
+            post(new Op<T>(Op.EXPECT, key, row, column, callback, null));
+            return;
+        }
+        expectNow(key, row, column, callback);
+    }
+
+    private void expectNow(final T key, final int row, final int column,
+            final Callback<T> callback) {
         Trace.beginSection("pool expect");
-        final int hash = key.hashCode();
-        if (contains(key)) {
-            mExpected.remove(key);
-            mTasks.remove(hash);
-        }
-        final boolean isFirst = mExpected.isEmpty();
-        mExpected.offer(key);
-        mTasks.put(hash, new Value(callback, null));
+        // Remove first, so that a previously expected key moves to the back.
+        removeKey(key);
+        final Value value = new Value(callback, null);
+        value.expectedAtMs = SystemClock.uptimeMillis();
+        value.row = row;
+        value.segment = row != NO_ROW ? column / mRowSegmentColumns : 0;
+        mExpected.put(key, value);
+        if (row != NO_ROW) {
+            final Long rowKey = getRowKey(value);
+            LinkedHashSet<T> rowKeys = mRows.get(rowKey);
+            if (rowKeys == null) {
+                rowKeys = new LinkedHashSet<T>();
+                mRows.put(rowKey, rowKeys);
+            }
+            rowKeys.add(key);
+        }
+        updateCounts();
         if (DEBUG) {
             Log.d(TAG, String.format("ContiguousFIFOAggregator >> tasks: %s", prettyPrint()));
         }
 
-        if (isFirst) {
-            onFirstExpectedChanged(key);
-        }
+        notifyFirstExpected();
+        scheduleTimers();
         Trace.endSection();
     }
 
@@ -128,25 +363,28 @@ public class ContiguousFIFOAggregator<T> {
             throw new IllegalArgumentException("Do not use null keys.");
         }
 
+        if (mInbox != null) {
+            post(new Op<T>(Op.FORGET, key, NO_ROW, 0, null, null));
+            return;
+        }
+        forgetNow(key);
+    }
+
+    private void forgetNow(final T key) {
         if (!contains(key)) {
             return;
         }
 
         Trace.beginSection("pool forget");
-        final boolean removedFirst = key.equals(mExpected.peek());
-        mExpected.remove(key);
-        mTasks.delete(key.hashCode());
+        removeKey(key);
         if (DEBUG) {
             Log.d(TAG, String.format("ContiguousFIFOAggregator  < tasks: %s", prettyPrint()));
         }
 
-        final T second;
-        if (removedFirst && (second = mExpected.peek()) != null) {
-            // We removed the first key. The second key is now first.
-            onFirstExpectedChanged(second);
-        }
-
+        // If we removed the first key, another key is now first.
+        notifyFirstExpected();
         maybeExecuteNow();
+        scheduleTimers();
         Trace.endSection();
     }
 
@@ -163,21 +401,70 @@ public class ContiguousFIFOAggregator<T> {
      * @param task the task to execute or store, depending on its corresponding key.
      */
     public void execute(final T key, final Runnable task) {
+        if (mInbox != null) {
+            post(new Op<T>(Op.EXECUTE, key, NO_ROW, 0, null, task));
+            return;
+        }
+        executeNow(key, task);
+    }
+
+    private void executeNow(final T key, final Runnable task) {
         Trace.beginSection("pool execute");
-        final int hash = key.hashCode();
-        final Value value = mTasks.get(hash);
+        final Value value = mExpected.get(key);
         if (value == null || task == null) {
             if (task != null) {
-                task.run();
+                runTask(task);
             }
             Trace.endSection();
             return;
         }
         value.task = task;
+        value.storedAtMs = SystemClock.uptimeMillis();
+        mHeld.remove(key);
+        mHeld.put(key, value);
+        updateCounts();
         if (DEBUG) {
             Log.d(TAG, String.format("ContiguousFIFOAggregator ++ tasks: %s", prettyPrint()));
         }
         maybeExecuteNow();
+        releaseOverflow();
+        scheduleTimers();
+        Trace.endSection();
+    }
+
+    private void post(final Op<T> op) {
+        mInbox.offer(op);
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mOwnerExecutor.execute(mDrainRunnable);
+        }
+    }
+
+    /**
+     * Runs on the owner executor. Apply every queued call, in order.
+     */
+    private void drain() {
+        Trace.beginSection("pool drain");
+        // Clear the flag first, so that calls queued while we drain schedule another batch.
+        mDrainScheduled.set(false);
+        int count = 0;
+        Op<T> op;
+        while ((op = mInbox.poll()) != null) {
+            switch (op.type) {
+                case Op.EXPECT:
+                    expectNow(op.key, op.row, op.column, op.callback);
+                    break;
+                case Op.FORGET:
+                    forgetNow(op.key);
+                    break;
+                case Op.EXECUTE:
+                    executeNow(op.key, op.task);
+                    break;
+            }
+            count++;
+        }
+        if (DEBUG) {
+            Log.d(TAG, String.format("ContiguousFIFOAggregator drained %d calls", count));
+        }
         Trace.endSection();
     }
 
@@ -185,59 +472,345 @@ public class ContiguousFIFOAggregator<T> {
      * Triggered by {@link #execute(Object, Runnable)} and {@link #forget(Object)}. The keys or
      * tasks have changed, which may cause one or more tasks to be executed. This method will
      * continue to execute tasks associated with the first expected key to the last expected key,
-     * stopping when it finds that the first expected key has not yet been assigned a task.
+     * stopping when it finds that the first expected key (or a key of the first expected row) has
+     * not yet been assigned a task.
      */
     private void maybeExecuteNow() {
-        T first;
-        int count = 0;
         while (!mExpected.isEmpty()) {
             Trace.beginSection("pool maybeExecuteNow loop");
-            first = mExpected.peek();
-            if (count > 0) {
-                // When count == 0, the key is already first.
-                onFirstExpectedChanged(first);
-            }
+            // The first time around, the first key was already notified.
+            notifyFirstExpected();
 
-            final int hash = first.hashCode();
-            final Value value = mTasks.get(hash);
+            final T first = firstKey();
+            final Value value = mExpected.get(first);
+            if (value.row != NO_ROW) {
+                final boolean executed = maybeExecuteFirstRow();
+                Trace.endSection();
+                if (!executed) {
+                    break;
+                }
+                continue;
+            }
             if (value.task == null) {
                 Trace.endSection();
                 break;
             }
 
-            mExpected.poll();
-            mTasks.delete(hash);
+            removeKey(first);
             if (DEBUG) {
                 Log.d(TAG, String.format("ContiguousFIFOAggregator  - tasks: %s", prettyPrint()));
             }
-            value.task.run();
-            count++;
+            runTask(value, false /* outOfOrder */);
             Trace.endSection();
         }
     }
 
     /**
-     * This method should only be called once for any key.
-     * @param key The key that has become the new first expected key.
+     * Execute the tasks of the first expected row together, if every key of the row has one.
+     *
+     * @return true if the row was executed.
+     */
+    private boolean maybeExecuteFirstRow() {
+        final List<T> keys = getFirstRow();
+        for (T key : keys) {
+            if (mExpected.get(key).task == null) {
+                return false;
+            }
+        }
+        // Remove the whole row before running any task, since tasks may call us back.
+        final List<Value> values = new ArrayList<Value>(keys.size());
+        for (T key : keys) {
+            values.add(removeKey(key));
+        }
+        if (DEBUG) {
+            Log.d(TAG, String.format("ContiguousFIFOAggregator  = tasks: %s", prettyPrint()));
+        }
+        for (Value value : values) {
+            runTask(value, false /* outOfOrder */);
+        }
+        return true;
+    }
+
+    /**
+     * Execute the tasks stored longest until no more than mMaxHeldTasks are stored.
+     */
+    private void releaseOverflow() {
+        while (mMaxHeldTasks >= 0 && mHeld.size() > mMaxHeldTasks) {
+            release(mHeld.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Execute the tasks that have been stored for mMaxHoldMs, and schedule the next check.
      */
-    private void onFirstExpectedChanged(final T key) {
-        final int hash = key.hashCode();
-        final Value value = mTasks.get(hash);
-        if (value == null) {
+    private void releaseExpired() {
+        if (mMaxHoldMs >= 0) {
+            final long expiredAtMs = SystemClock.uptimeMillis() - mMaxHoldMs;
+            while (!mHeld.isEmpty()) {
+                final Map.Entry<T, Value> oldest = mHeld.entrySet().iterator().next();
+                if (oldest.getValue().storedAtMs > expiredAtMs) {
+                    break;
+                }
+                release(oldest.getKey());
+            }
+        }
+        scheduleTimers();
+    }
+
+    /**
+     * Skip the first expected key, or the first key of the first expected row, without a task
+     * while it is past its deadline and holds up stored tasks, and schedule the next check.
+     */
+    private void skipStalled() {
+        if (mKeyDeadlineMs >= 0) {
+            final long expiredAtMs = SystemClock.uptimeMillis() - mKeyDeadlineMs;
+            T stalled;
+            while (!mHeld.isEmpty() && (stalled = getFirstStalled()) != null) {
+                final Value value = mExpected.get(stalled);
+                if (value.expectedAtMs > expiredAtMs) {
+                    break;
+                }
+                Trace.beginSection("pool skip");
+                removeKey(stalled);
+                if (DEBUG) {
+                    Log.d(TAG, String.format("ContiguousFIFOAggregator  ~ tasks: %s",
+                            prettyPrint()));
+                }
+                mSkippedCount.incrementAndGet();
+                if (value.callback instanceof SkipCallback) {
+                    ((SkipCallback<T>) value.callback).onSkipped(stalled);
+                }
+                notifyFirstExpected();
+                maybeExecuteNow();
+                Trace.endSection();
+            }
+        }
+        scheduleTimers();
+    }
+
+    /**
+     * Schedule the next checks for stored tasks past the ordering window, and for a first
+     * expected key past its deadline.
+     */
+    private void scheduleTimers() {
+        if (mHandler == null) {
             return;
         }
+        mHandler.removeCallbacks(mReleaseExpiredRunnable);
+        if (mMaxHoldMs >= 0 && !mHeld.isEmpty()) {
+            final Value oldest = mHeld.values().iterator().next();
+            mHandler.postAtTime(mReleaseExpiredRunnable, oldest.storedAtMs + mMaxHoldMs);
+        }
+        mHandler.removeCallbacks(mSkipStalledRunnable);
+        final T stalled;
+        if (mKeyDeadlineMs >= 0 && !mHeld.isEmpty() && (stalled = getFirstStalled()) != null) {
+            final Value value = mExpected.get(stalled);
+            mHandler.postAtTime(mSkipStalledRunnable, value.expectedAtMs + mKeyDeadlineMs);
+        }
+    }
+
+    /**
+     * Execute the stored task of a key that is not the first expected key, out of order.
+     */
+    private void release(final T key) {
+        Trace.beginSection("pool release");
+        final Value value = removeKey(key);
+        if (DEBUG) {
+            Log.d(TAG, String.format("ContiguousFIFOAggregator  ! tasks: %s", prettyPrint()));
+        }
+        runTask(value, true /* outOfOrder */);
+        Trace.endSection();
+    }
+
+    /**
+     * Run the stored task of a removed key, or hand it to the release executor. Its hold time is
+     * counted when it actually runs.
+     */
+    private void runTask(final Value value, final boolean outOfOrder) {
+        if (mReleaseExecutor == null) {
+            recordHold(value, outOfOrder);
+            value.task.run();
+            return;
+        }
+        mReleaseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                recordHold(value, outOfOrder);
+                value.task.run();
+            }
+        });
+    }
+
+    private void runTask(final Runnable task) {
+        if (mReleaseExecutor == null) {
+            task.run();
+        } else {
+            mReleaseExecutor.execute(task);
+        }
+    }
+
+    private Value removeKey(final T key) {
+        mHeld.remove(key);
+        final Value value = mExpected.remove(key);
+        if (value != null && value.row != NO_ROW) {
+            final Long rowKey = getRowKey(value);
+            final LinkedHashSet<T> rowKeys = mRows.get(rowKey);
+            rowKeys.remove(key);
+            if (rowKeys.isEmpty()) {
+                mRows.remove(rowKey);
+            }
+        }
+        updateCounts();
+        return value;
+    }
+
+    private Long getRowKey(final Value value) {
+        return ((long) value.row << 32) | (value.segment & 0xFFFFFFFFL);
+    }
+
+    private void updateCounts() {
+        mExpectedCount = mExpected.size();
+        mHeldCount = mHeld.size();
+    }
+
+    /**
+     * Count the time a task was held, just before it runs.
+     */
+    private void recordHold(final Value value, final boolean outOfOrder) {
+        final long holdMs = SystemClock.uptimeMillis() - value.storedAtMs;
+        if (outOfOrder) {
+            mReleasedCount.incrementAndGet();
+        } else {
+            mExecutedCount.incrementAndGet();
+        }
+        mTotalHoldMs.addAndGet(holdMs);
+        // The release executor may run tasks on another thread.
+        long longest;
+        while (holdMs > (longest = mLongestHoldMs.get())
+                && !mLongestHoldMs.compareAndSet(longest, holdMs)) {
+        }
+        mHoldHistogram.incrementAndGet(AggregatorStats.getBucket(holdMs));
+    }
+
+    /**
+     * Take a snapshot of the queue and of the hold times of the tasks run so far. This may be
+     * called from any thread.
+     */
+    public AggregatorStats getStats() {
+        final long[] histogram = new long[AggregatorStats.BUCKET_COUNT];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = mHoldHistogram.get(i);
+        }
+        return new AggregatorStats(mExpectedCount, mHeldCount, mExecutedCount.get(),
+                mReleasedCount.get(), mSkippedCount.get(), mTotalHoldMs.get(),
+                mLongestHoldMs.get(), histogram);
+    }
+
+    /**
+     * Reset the counts of tasks and the hold time histogram.
+     */
+    public void resetStats() {
+        mExecutedCount.set(0);
+        mReleasedCount.set(0);
+        mSkippedCount.set(0);
+        mTotalHoldMs.set(0);
+        mLongestHoldMs.set(0);
+        for (int i = 0; i < AggregatorStats.BUCKET_COUNT; i++) {
+            mHoldHistogram.set(i, 0);
+        }
+    }
+
+    /**
+     * Notify the first expected key, or every key of the first expected row, that it has become
+     * first. Each key is only notified once.
+     */
+    private void notifyFirstExpected() {
+        final T first = firstKey();
+        if (first == null) {
+            return;
+        }
+        final Value value = mExpected.get(first);
+        if (value.row == NO_ROW) {
+            onFirstExpectedChanged(first, value);
+            return;
+        }
+        for (T key : getFirstRow()) {
+            // Callbacks may call us back, so the key may be gone.
+            final Value rowValue = mExpected.get(key);
+            if (rowValue != null) {
+                onFirstExpectedChanged(key, rowValue);
+            }
+        }
+    }
+
+    /**
+     * @param key   The key that has become the new first expected key.
+     * @param value The value of the key.
+     */
+    private void onFirstExpectedChanged(final T key, final Value value) {
+        if (value.notified) {
+            return;
+        }
+        value.notified = true;
         final Callback<T> callback = value.callback;
         if (callback == null) {
             return;
         }
         if (DEBUG) {
-            Log.d(TAG, String.format("ContiguousFIFOAggregator    first: %d", hash));
+            Log.d(TAG, String.format("ContiguousFIFOAggregator    first: %s", key));
         }
         callback.onBecomeFirstExpected(key);
     }
 
+    /**
+     * @return Every expected key that shares the row and segment of the first expected key, or
+     * just the first expected key if it has no row.
+     */
+    private List<T> getFirstRow() {
+        final T first = firstKey();
+        if (first == null) {
+            return new ArrayList<T>(0);
+        }
+        final Value value = mExpected.get(first);
+        if (value.row == NO_ROW) {
+            final List<T> keys = new ArrayList<T>(1);
+            keys.add(first);
+            return keys;
+        }
+        return new ArrayList<T>(mRows.get(getRowKey(value)));
+    }
+
+    /**
+     * @return The first key without a task in the first expected row, or null if there is none.
+     */
+    private T getFirstStalled() {
+        final T first = firstKey();
+        if (first == null) {
+            return null;
+        }
+        if (mExpected.get(first).row == NO_ROW) {
+            return mExpected.get(first).task == null ? first : null;
+        }
+        for (T key : getFirstRow()) {
+            if (mExpected.get(key).task == null) {
+                return key;
+            }
+        }
+        return null;
+    }
+
     private boolean contains(final T key) {
-        return mTasks.get(key.hashCode()) != null;
+        return mExpected.containsKey(key);
+    }
+
+    /**
+     * @return The first expected key, or null if there is none.
+     */
+    private T firstKey() {
+        if (mExpected.isEmpty()) {
+            return null;
+        }
+        return mExpected.keySet().iterator().next();
     }
 
     /**
@@ -251,22 +824,17 @@ public class ContiguousFIFOAggregator<T> {
 
         StringBuilder buffer = new StringBuilder(mExpected.size() * 28);
         buffer.append('{');
-        Iterator<T> it = mExpected.iterator();
+        Iterator<Map.Entry<T, Value>> it = mExpected.entrySet().iterator();
         while (it.hasNext()) {
-            final T key = it.next();
-            final int hash = key.hashCode();
-            buffer.append(hash);
+            final Map.Entry<T, Value> entry = it.next();
+            buffer.append(entry.getKey().hashCode());
             buffer.append('=');
-            final Value value = mTasks.get(hash);
-            buffer.append(value);
+            buffer.append(entry.getValue());
             if (it.hasNext()) {
                 buffer.append(", ");
             }
         }
         buffer.append('}');
-        if (mExpected.size() != mTasks.size()) {
-            buffer.append(" error");
-        }
         return buffer.toString();
     }
 
@@ -292,6 +860,50 @@ public class ContiguousFIFOAggregator<T> {
         void onBecomeFirstExpected(final T key);
     }
 
+    /**
+     * Optional extension of {@link Callback} for callbacks that want to know when their key is
+     * skipped after a deadline.
+     * @param <T> The type of the key used for the aggregator.
+     */
+    public interface SkipCallback<T> extends Callback<T> {
+
+        /**
+         * The key you declared as expected was the first expected key, or in the first expected
+         * row, but its task did not arrive before the deadline set with
+         * {@link #setKeyDeadline(long)}. It is no longer expected, and its task will run as soon
+         * as it arrives.
+         *
+         * @param key The key that was skipped.
+         */
+        void onSkipped(final T key);
+    }
+
+    /**
+     * A call queued in the inbox of a thread safe aggregator.
+     */
+    private static class Op<T> {
+        static final int EXPECT = 0;
+        static final int FORGET = 1;
+        static final int EXECUTE = 2;
+
+        final int type;
+        final T key;
+        final int row;
+        final int column;
+        final Callback<T> callback;
+        final Runnable task;
+
+        Op(final int type, final T key, final int row, final int column,
+                final Callback<T> callback, final Runnable task) {
+            this.type = type;
+            this.key = key;
+            this.row = row;
+            this.column = column;
+            this.callback = callback;
+            this.task = task;
+        }
+    }
+
     /**
      * Holds the callback and task for when a key later becomes the first expected key.
      */
@@ -299,6 +911,23 @@ public class ContiguousFIFOAggregator<T> {
 
         final Callback<T> callback;
         Runnable task;
+        /**
+         * When the key was expected, in {@link SystemClock#uptimeMillis()} time.
+         */
+        long expectedAtMs;
+        /**
+         * The row and row segment of the key, or {@link #NO_ROW}.
+         */
+        int row = NO_ROW;
+        int segment;
+        /**
+         * Whether the callback has been told that the key became first.
+         */
+        boolean notified;
+        /**
+         * When the task was stored, in {@link SystemClock#uptimeMillis()} time.
+         */
+        long storedAtMs;
 
         Value(final Callback<T> callback, final Runnable task) {
             this.callback = callback;
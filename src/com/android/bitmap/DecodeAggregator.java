@@ -16,9 +16,29 @@
 
 package com.android.bitmap;
 
+import java.util.concurrent.Executor;
+
 public class DecodeAggregator extends ContiguousFIFOAggregator<RequestKey> {
 
+    public DecodeAggregator() {
+        super();
+    }
+
+    /**
+     * Create a new DecodeAggregator that may be used from any thread.
+     *
+     * @see ContiguousFIFOAggregator#ContiguousFIFOAggregator(Executor)
+     */
+    public DecodeAggregator(final Executor ownerExecutor) {
+        super(ownerExecutor);
+    }
+
     public interface Callback extends ContiguousFIFOAggregator.Callback<RequestKey> {
 
     }
+
+    public interface SkipCallback extends Callback,
+            ContiguousFIFOAggregator.SkipCallback<RequestKey> {
+
+    }
 }
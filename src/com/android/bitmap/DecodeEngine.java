@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.bitmap.DecodeTask.DecodeCallback;
+import com.android.bitmap.DecodeTask.DecodeOptions;
+import com.android.bitmap.RequestKey.FileDescriptorFactory;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs decodes on an executor of your choosing and returns a {@link DecodeFuture} for each.
+ * Unlike {@link DecodeTask}, the engine does not depend on AsyncTask or on the main Looper:
+ * callbacks are delivered on a pluggable callback executor. Use {@link #getMainThreadExecutor()}
+ * for UI clients, a {@link FrameDispatcher} to coalesce UI callbacks per frame, or
+ * {@link #DIRECT_EXECUTOR} for background services and benchmarks without a Looper.
+ */
+public class DecodeEngine {
+
+    /**
+     * Runs callbacks synchronously on the thread that triggered them, usually the decoding
+     * thread.
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    private static Executor sMainThreadExecutor;
+
+    private final BitmapCache mCache;
+    private final Executor mDecodeExecutor;
+    private final Executor mCallbackExecutor;
+    private ScrollThrottle mThrottle;
+
+    /**
+     * Create a new DecodeEngine.
+     *
+     * @param cache            The cache and pool.
+     * @param decodeExecutor   The executor to run decodes on.
+     * @param callbackExecutor The executor to deliver callbacks on.
+     */
+    public DecodeEngine(final BitmapCache cache, final Executor decodeExecutor,
+            final Executor callbackExecutor) {
+        mCache = cache;
+        mDecodeExecutor = decodeExecutor;
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Set an optional throttle to limit pixel decodes while a list scrolls. Applies to decodes
+     * submitted afterwards.
+     */
+    public void setScrollThrottle(final ScrollThrottle throttle) {
+        mThrottle = throttle;
+    }
+
+    /**
+     * Start decoding the given request.
+     *
+     * @param key      The request to decode, also the key to use for the cache.
+     * @param opts     The decode options.
+     * @param factory  The factory to obtain file descriptors to decode from, or null to decode
+     *                 from key.createInputStream().
+     * @param callback The callback to notify of decode state changes, or null.
+     */
+    public DecodeFuture submit(final RequestKey key, final DecodeOptions opts,
+            final FileDescriptorFactory factory, final DecodeCallback callback) {
+        final DecodeFuture future = new DecodeFuture(new Decoder(key, opts, factory, mCache),
+                callback, mCallbackExecutor);
+        future.setThrottle(mThrottle);
+        return future.executeOn(mDecodeExecutor);
+    }
+
+    /**
+     * Get an executor that posts to the main thread.
+     */
+    public static synchronized Executor getMainThreadExecutor() {
+        if (sMainThreadExecutor == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            sMainThreadExecutor = new Executor() {
+                @Override
+                public void execute(final Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        return sMainThreadExecutor;
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import com.android.bitmap.AsyncBitmapCache.PollCallback;
+import com.android.bitmap.DecodeTask.DecodeCallback;
+import com.android.bitmap.DecodeTask.ProgressiveDecodeCallback;
+import com.android.bitmap.RequestKey.Cancelable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A cancellable, listenable handle to a single {@link Decoder} run. Run it on any executor; its
+ * {@link DecodeCallback} and {@link Listener}s are notified on the callback executor given at
+ * construction.
+ * <p/>
+ * The callback contract matches that of {@link DecodeTask}: onDecodeBegin is delivered when the
+ * decode starts, followed by any number of onDecodePartial for progressive decodes if the
+ * callback is a {@link ProgressiveDecodeCallback}, then by
+ * exactly one of onDecodeComplete or onDecodeCancel. If the future is
+ * cancelled before the completion is delivered, onDecodeCancel is delivered instead and the result
+ * is released, even if the decode had already finished. So if the callback executor is the UI
+ * thread, a cancel on the UI thread guarantees that onDecodeComplete will not be called.
+ * <p/>
+ * Cancellation is cooperative: the decoding thread is never interrupted.
+ * <p/>
+ * When started with {@link #executeOn(Executor)}, a decode that needs a reusable bitmap while the
+ * pool is empty and blocking does not block its thread, if the cache is an
+ * {@link AsyncBitmapCache}. It is parked with {@link AsyncBitmapCache#pollAsync(PollCallback)}
+ * instead, and resubmitted to the executor once a bitmap is offered, so that the thread can work
+ * on other requests meanwhile. Likewise, a
+ * decode deferred by a {@link ScrollThrottle} gives up its thread until the throttle resumes it,
+ * and a decode that does not fit its {@link DecodeMemoryLimiter} gives up its thread until the
+ * limiter admits it. A decode is admitted before it takes a bitmap from the pool, so that a
+ * parked decode never holds one.
+ * <p/>
+ * If no DecodeCallback is given, the caller of {@link #get()} owns the reference acquired on the
+ * result.
+ */
+public class DecodeFuture implements Future<ReusableBitmap>, Runnable, Cancelable {
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_DECODED = 2;
+    private static final int STATE_DELIVERED = 3;
+    private static final int STATE_CANCELLED = 4;
+
+    private final Decoder mDecoder;
+    private final DecodeCallback mCallback;
+    private final Executor mCallbackExecutor;
+
+    private final Object mLock = new Object();
+    private int mState = STATE_PENDING;
+    private ReusableBitmap mResult;
+    private boolean mFinished;
+    private List<Listener> mListeners;
+
+    private Executor mDecodeExecutor;
+    /**
+     * The thread currently in {@link #acquireInBitmap()}, to tell an inline poll result from a
+     * parked one.
+     */
+    private volatile Thread mPollingThread;
+    private boolean mPolledInline;
+
+    private ScrollThrottle mThrottle;
+    /**
+     * Whether this future holds a permit of mThrottle. Guarded by mLock.
+     */
+    private boolean mHoldsPermit;
+
+    private final PollCallback mPollCallback = new PollCallback() {
+        @Override
+        public void onPolled(final ReusableBitmap bitmap) {
+            final boolean inline = Thread.currentThread() == mPollingThread;
+            final boolean pending;
+            synchronized (mLock) {
+                pending = mState == STATE_PENDING;
+                if (pending) {
+                    mDecoder.setInBitmap(bitmap);
+                    mPolledInline = inline;
+                }
+            }
+            if (!pending) {
+                // Cancelled while parked.
+                if (bitmap != null) {
+                    mDecoder.getCache().offer(bitmap);
+                }
+            } else if (!inline) {
+                mDecodeExecutor.execute(DecodeFuture.this);
+            }
+        }
+    };
+
+    private final Runnable mBeginRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCallback.onDecodeBegin(mDecoder.getKey());
+        }
+    };
+
+    private final Decoder.ProgressListener mProgressListener = new Decoder.ProgressListener() {
+        @Override
+        public void onPartialDecode(final ReusableBitmap partial) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mLock) {
+                        // Drop partial results that arrive after a cancel or the final result.
+                        if (mState != STATE_RUNNING) {
+                            return;
+                        }
+                    }
+                    ((ProgressiveDecodeCallback) mCallback).onDecodePartial(mDecoder.getKey(),
+                            partial);
+                }
+            });
+        }
+    };
+
+    private final Runnable mDeliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * Create a new DecodeFuture.
+     *
+     * @param decoder          The decoder to run.
+     * @param callback         The callback to notify of decode state changes, or null.
+     * @param callbackExecutor The executor to notify the callback and listeners on.
+     */
+    public DecodeFuture(final Decoder decoder, final DecodeCallback callback,
+            final Executor callbackExecutor) {
+        mDecoder = decoder;
+        mCallback = callback;
+        mCallbackExecutor = callbackExecutor;
+        if (callback instanceof ProgressiveDecodeCallback) {
+            decoder.setProgressListener(mProgressListener);
+        }
+    }
+
+    public RequestKey getKey() {
+        return mDecoder.getKey();
+    }
+
+    Decoder getDecoder() {
+        return mDecoder;
+    }
+
+    /**
+     * Start the decode on the given executor. The executor is also used to resume the decode if
+     * it has to wait for a reusable bitmap.
+     */
+    public DecodeFuture executeOn(final Executor executor) {
+        setDecodeExecutor(executor);
+        executor.execute(this);
+        return this;
+    }
+
+    /**
+     * Set the executor to resume the decode on after waiting for a reusable bitmap, for futures
+     * that are run by some other means than {@link #executeOn(Executor)}.
+     */
+    void setDecodeExecutor(final Executor executor) {
+        mDecodeExecutor = executor;
+    }
+
+    /**
+     * Throttle the pixel decode with the given throttle. Only effective for futures that have a
+     * decode executor to be resumed on.
+     */
+    void setThrottle(final ScrollThrottle throttle) {
+        mThrottle = throttle;
+    }
+
+    /**
+     * Called by the throttle to resume a deferred decode, with a permit acquired on our behalf.
+     */
+    void resume() {
+        final boolean pending;
+        synchronized (mLock) {
+            pending = mState == STATE_PENDING;
+            mHoldsPermit = pending;
+        }
+        if (pending) {
+            mDecodeExecutor.execute(this);
+        } else {
+            mThrottle.release();
+        }
+    }
+
+    /**
+     * Called by the memory limiter to resume a parked decode, with the given cost admitted on
+     * our behalf.
+     */
+    void onAdmitted(final long bytes) {
+        final boolean pending;
+        synchronized (mLock) {
+            pending = mState == STATE_PENDING;
+            if (pending) {
+                mDecoder.setAdmittedBytes(bytes);
+            }
+        }
+        if (pending) {
+            mDecodeExecutor.execute(this);
+        } else {
+            mDecoder.getDecodeOptions().memoryLimiter.release(bytes);
+        }
+    }
+
+    @Override
+    public void run() {
+        final boolean needsPermit;
+        synchronized (mLock) {
+            if (mState != STATE_PENDING) {
+                return;
+            }
+            needsPermit = mThrottle != null && mDecodeExecutor != null && !mHoldsPermit;
+        }
+
+        if (needsPermit && !acquirePermit()) {
+            // Deferred. Get the I/O and header work out of the way while we have the thread.
+            // mThrottle will resume us.
+            mDecoder.loadMetadata();
+            return;
+        }
+
+        if (mDecodeExecutor != null && mDecoder.needsAdmission() && !acquireMemory()) {
+            // Parked. The limiter will resume us.
+            return;
+        }
+
+        // A decode that still has to admit itself also polls for itself, after it is admitted.
+        if (mDecodeExecutor != null && mDecoder.getCache() instanceof AsyncBitmapCache
+                && mDecoder.needsInBitmap() && !mDecoder.needsAdmission()
+                && !acquireInBitmap()) {
+            // Parked. mPollCallback will resubmit us.
+            return;
+        }
+
+        synchronized (mLock) {
+            if (mState != STATE_PENDING) {
+                return;
+            }
+            mState = STATE_RUNNING;
+        }
+
+        if (mCallback != null) {
+            mCallbackExecutor.execute(mBeginRunnable);
+        }
+
+        final ReusableBitmap result = mDecoder.decode();
+
+        final boolean releasePermit;
+        synchronized (mLock) {
+            mResult = result;
+            if (mState == STATE_RUNNING) {
+                mState = STATE_DECODED;
+            }
+            releasePermit = mHoldsPermit;
+            mHoldsPermit = false;
+            mLock.notifyAll();
+        }
+        if (releasePermit) {
+            mThrottle.release();
+        }
+        mCallbackExecutor.execute(mDeliverRunnable);
+    }
+
+    /**
+     * @return true if the throttle allows the pixel decode to start now.
+     */
+    private boolean acquirePermit() {
+        if (!mThrottle.tryAcquire(this)) {
+            return false;
+        }
+        final boolean pending;
+        synchronized (mLock) {
+            pending = mState == STATE_PENDING;
+            mHoldsPermit = pending;
+        }
+        if (!pending) {
+            mThrottle.release();
+        }
+        return pending;
+    }
+
+    /**
+     * Admit the decode with its memory limiter without blocking. This reads the source bounds
+     * first, unless the metadata cache has them.
+     *
+     * @return true if admitted right away, or if the bounds are not known until the decode, which
+     * then admits itself. false if the decode was parked.
+     */
+    private boolean acquireMemory() {
+        final DecodeMemoryLimiter limiter = mDecoder.getDecodeOptions().memoryLimiter;
+        final long bytes = mDecoder.estimateAdmissionBytes();
+        if (bytes < 0) {
+            return true;
+        }
+        if (!limiter.tryAcquire(bytes, this)) {
+            return false;
+        }
+        final boolean pending;
+        synchronized (mLock) {
+            pending = mState == STATE_PENDING;
+            if (pending) {
+                mDecoder.setAdmittedBytes(bytes);
+            }
+        }
+        if (!pending) {
+            limiter.release(bytes);
+        }
+        return pending;
+    }
+
+    /**
+     * Poll the pool for the decoder without blocking.
+     *
+     * @return true if the poll completed right away, false if the decode was parked.
+     */
+    private boolean acquireInBitmap() {
+        mPollingThread = Thread.currentThread();
+        ((AsyncBitmapCache) mDecoder.getCache()).pollAsync(mPollCallback);
+        synchronized (mLock) {
+            mPollingThread = null;
+            return mPolledInline;
+        }
+    }
+
+    /**
+     * Runs on the callback executor, once per future.
+     */
+    private void deliver() {
+        final boolean cancelled;
+        final ReusableBitmap result;
+        final List<Listener> listeners;
+        synchronized (mLock) {
+            cancelled = mState == STATE_CANCELLED;
+            if (!cancelled) {
+                mState = STATE_DELIVERED;
+            }
+            result = mResult;
+            if (cancelled) {
+                mResult = null;
+            }
+            mFinished = true;
+            listeners = mListeners;
+            mListeners = null;
+        }
+
+        final RequestKey key = mDecoder.getKey();
+        if (cancelled) {
+            if (result != null) {
+                mDecoder.onResultDiscarded();
+            }
+            Decoder.releaseCancelledResult(result);
+            if (mCallback != null) {
+                mCallback.onDecodeCancel(key);
+            }
+        } else if (mCallback != null) {
+            mCallback.onDecodeComplete(key, result);
+        }
+
+        if (listeners != null) {
+            for (Listener listener : listeners) {
+                listener.onDecodeFinished(this);
+            }
+        }
+    }
+
+    /**
+     * Add a listener to notify on the callback executor once the outcome of this future has been
+     * delivered. If it already has been, the listener is notified right away.
+     */
+    public void addListener(final Listener listener) {
+        synchronized (mLock) {
+            if (!mFinished) {
+                if (mListeners == null) {
+                    mListeners = new ArrayList<Listener>(1);
+                }
+                mListeners.add(listener);
+                return;
+            }
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDecodeFinished(DecodeFuture.this);
+            }
+        });
+    }
+
+    /**
+     * Cancel the decode. This may be called from any thread.
+     */
+    @Override
+    public void cancel() {
+        cancel(false);
+    }
+
+    /**
+     * Cancel the decode. The decoding thread is never interrupted, regardless of
+     * mayInterruptIfRunning; instead the decoder stops at its next cancellation check.
+     */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        final int previousState;
+        final boolean releasePermit;
+        synchronized (mLock) {
+            if (mState == STATE_DELIVERED || mState == STATE_CANCELLED) {
+                return false;
+            }
+            previousState = mState;
+            mState = STATE_CANCELLED;
+            releasePermit = previousState == STATE_PENDING && mHoldsPermit;
+            if (releasePermit) {
+                mHoldsPermit = false;
+            }
+            mLock.notifyAll();
+        }
+
+        switch (previousState) {
+            case STATE_PENDING:
+                // run() will now return early, so deliver the cancel ourselves.
+                if (mThrottle != null) {
+                    mThrottle.remove(this);
+                    if (releasePermit) {
+                        mThrottle.release();
+                    }
+                }
+                final DecodeMemoryLimiter limiter = mDecoder.getDecodeOptions().memoryLimiter;
+                if (limiter != null) {
+                    limiter.remove(this);
+                }
+                if (mDecoder.getCache() instanceof AsyncBitmapCache) {
+                    ((AsyncBitmapCache) mDecoder.getCache()).cancelPoll(mPollCallback);
+                }
+                mDecoder.cancelBeforeStart();
+                mCallbackExecutor.execute(mDeliverRunnable);
+                break;
+            case STATE_RUNNING:
+                // run() will deliver the cancel once the decoder stops.
+                mDecoder.cancel();
+                break;
+            case STATE_DECODED:
+                // The pending delivery will see the cancel and release the result.
+                break;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized (mLock) {
+            return mState == STATE_CANCELLED;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        synchronized (mLock) {
+            return mState >= STATE_DECODED;
+        }
+    }
+
+    /**
+     * Wait for the decode to finish.
+     *
+     * @return The result, or null if the decode failed.
+     */
+    @Override
+    public ReusableBitmap get() throws InterruptedException {
+        synchronized (mLock) {
+            while (mState < STATE_DECODED) {
+                mLock.wait();
+            }
+            return getResultLocked();
+        }
+    }
+
+    @Override
+    public ReusableBitmap get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mLock) {
+            while (mState < STATE_DECODED) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+            }
+            return getResultLocked();
+        }
+    }
+
+    private ReusableBitmap getResultLocked() {
+        if (mState == STATE_CANCELLED) {
+            throw new CancellationException();
+        }
+        return mResult;
+    }
+
+    @Override
+    public String toString() {
+        return "DecodeFuture[key=" + mDecoder.getKey() + " state=" + mState + "]";
+    }
+
+    /**
+     * Listener for the end of a decode.
+     */
+    public interface Listener {
+
+        /**
+         * The outcome of the future has been delivered to its callback. Use
+         * {@link DecodeFuture#isCancelled()} and {@link DecodeFuture#get()} to inspect it.
+         */
+        void onDecodeFinished(DecodeFuture future);
+    }
+}
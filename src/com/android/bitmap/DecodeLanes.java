@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import android.util.Log;
+
+import com.android.bitmap.DecodeTask.DecodeOptions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A registry of named decode lanes, e.g. {@link #LANE_THUMB} for avatars, {@link #LANE_HERO} for
+ * large images and {@link #LANE_PREFETCH} for speculative work. Each lane is an
+ * {@link Executor} with its own queue and its own cap on concurrent decodes, so that a screen of
+ * hero images cannot starve the avatars elsewhere.
+ * <p/>
+ * The lanes do not budget memory themselves. Share a {@link DecodeMemoryLimiter} between the
+ * decodes of all lanes through {@link DecodeOptions#memoryLimiter} instead: a
+ * {@link DecodeFuture} that does not fit is parked by the limiter and gives up its lane slot
+ * until it is admitted, so that lanes never sit on decodes that cannot start.
+ * <p/>
+ * Select a lane for a drawable with
+ * {@link com.android.bitmap.drawable.ExtendedBitmapDrawable.ExtendedOptions#decodeLane}.
+ * <p/>
+ * This class is thread safe.
+ */
+public class DecodeLanes {
+
+    public static final String LANE_THUMB = "thumb";
+    public static final String LANE_HERO = "hero";
+    public static final String LANE_PREFETCH = "prefetch";
+
+    private final Object mLock = new Object();
+    private final Map<String, Lane> mLanes = new LinkedHashMap<String, Lane>();
+    /**
+     * The lane to consider first on the next pump, so that lanes take turns.
+     */
+    private int mNextLane;
+
+    private final ThreadPoolExecutor mThreads = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            1, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new NamedThreadFactory("decode-lane"));
+
+    private static final String TAG = DecodeLanes.class.getSimpleName();
+    private static final boolean DEBUG = DecodeTask.DEBUG;
+
+    /**
+     * Create an empty registry. Add lanes with {@link #addLane(String, int)}.
+     */
+    public DecodeLanes() {
+    }
+
+    /**
+     * Create a registry with the {@link #LANE_THUMB}, {@link #LANE_HERO} and
+     * {@link #LANE_PREFETCH} lanes.
+     */
+    public static DecodeLanes createDefault() {
+        final int cpuCount = Runtime.getRuntime().availableProcessors();
+        final DecodeLanes lanes = new DecodeLanes();
+        lanes.addLane(LANE_THUMB, cpuCount + 1);
+        lanes.addLane(LANE_HERO, Math.max(1, cpuCount / 2));
+        lanes.addLane(LANE_PREFETCH, 1);
+        return lanes;
+    }
+
+    /**
+     * Add a lane, or change the cap of an existing one.
+     *
+     * @param name          The name of the lane.
+     * @param maxConcurrent The maximum number of decodes to run at once in this lane.
+     */
+    public Lane addLane(final String name, final int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be at least 1");
+        }
+        final Lane lane;
+        synchronized (mLock) {
+            Lane existing = mLanes.get(name);
+            if (existing == null) {
+                existing = new Lane(name);
+                mLanes.put(name, existing);
+            }
+            existing.mMaxConcurrent = maxConcurrent;
+            lane = existing;
+        }
+        pump();
+        return lane;
+    }
+
+    /**
+     * @return The lane with the given name, or null if there is none.
+     */
+    public Lane getLane(final String name) {
+        synchronized (mLock) {
+            return mLanes.get(name);
+        }
+    }
+
+    /**
+     * Start as much queued work as the lane caps allow.
+     */
+    private void pump() {
+        List<Work> started = null;
+        synchronized (mLock) {
+            final List<Lane> lanes = new ArrayList<Lane>(mLanes.values());
+            final int count = lanes.size();
+            for (int i = 0; i < count; i++) {
+                final Lane lane = lanes.get((mNextLane + i) % count);
+                while (lane.mRunning < lane.mMaxConcurrent && !lane.mQueue.isEmpty()) {
+                    final Work work = lane.mQueue.poll();
+                    lane.mRunning++;
+                    if (started == null) {
+                        started = new ArrayList<Work>();
+                    }
+                    started.add(work);
+                }
+            }
+            if (count > 0) {
+                mNextLane = (mNextLane + 1) % count;
+            }
+        }
+        if (started != null) {
+            for (Work work : started) {
+                mThreads.execute(work);
+            }
+        }
+    }
+
+    private void finish(final Work work) {
+        synchronized (mLock) {
+            work.lane.mRunning--;
+        }
+        pump();
+    }
+
+    public String toDebugString() {
+        final StringBuilder sb = new StringBuilder();
+        synchronized (mLock) {
+            sb.append("DecodeLanes\n");
+            for (Lane lane : mLanes.values()) {
+                sb.append("  ").append(lane).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A named lane. Work submitted to it runs in submission order, at most maxConcurrent at once.
+     */
+    public class Lane implements Executor {
+        private final String mName;
+        private final ArrayDeque<Work> mQueue = new ArrayDeque<Work>();
+        private int mMaxConcurrent;
+        private int mRunning;
+
+        Lane(final String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            final Work work = new Work(this, command);
+            synchronized (mLock) {
+                mQueue.offer(work);
+            }
+            if (DEBUG) {
+                Log.d(TAG, "lane " + mName + " queued " + command);
+            }
+            pump();
+        }
+
+        @Override
+        public String toString() {
+            synchronized (mLock) {
+                return "Lane[" + mName + " running=" + mRunning + "/" + mMaxConcurrent
+                        + " queued=" + mQueue.size() + "]";
+            }
+        }
+    }
+
+    private class Work implements Runnable {
+        final Lane lane;
+        final Runnable command;
+
+        Work(final Lane lane, final Runnable command) {
+            this.lane = lane;
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            try {
+                command.run();
+            } finally {
+                finish(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.android.bitmap.util.Trace;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Admission control for the memory of decodes. Each decode costs a full-size decode of its source
+ * at its sample size, {@link #estimateBytes(int, int, int, Bitmap.Config)}, from the source
+ * bounds known from the metadata cache or a bounds pass. This bounds the sampled region of the
+ * cropped and exact decodes, and the unpooled non-cropping fallback. A decode that has to retry
+ * at a smaller sample size is admitted again at the larger cost first. Decodes are admitted before
+ * they take a bitmap from the pool. A decode only starts while the total cost of the decodes in
+ * flight stays below the ceiling. A decode is always admitted when nothing else is in flight, so
+ * that a single decode larger than the ceiling still runs.
+ * <p/>
+ * A {@link DecodeFuture} that does not fit is parked without holding a thread, and resubmitted
+ * to its decode executor once enough decodes finish. Parked futures are admitted in the order
+ * they arrived. Only a direct call to {@link Decoder#decode()}, a decode whose bounds cannot be
+ * read ahead of time, e.g. from a progressive or already opened source, and a retry at a larger
+ * cost, wait on their own thread.
+ * <p/>
+ * Share one limiter between all decodes through {@link DecodeTask.DecodeOptions#memoryLimiter}.
+ * It is also the only memory budget of {@link DecodeLanes}.
+ * <p/>
+ * This class is thread safe.
+ */
+public class DecodeMemoryLimiter {
+
+    private final Object mLock = new Object();
+    private final long mCeilingBytes;
+    private long mInFlightBytes;
+    private long mPeakBytes;
+    private long mWaitCount;
+    /**
+     * Parked futures, in arrival order, with their cost.
+     */
+    private final LinkedHashMap<DecodeFuture, Long> mParked =
+            new LinkedHashMap<DecodeFuture, Long>();
+
+    private static final String TAG = DecodeMemoryLimiter.class.getSimpleName();
+    private static final boolean DEBUG = DecodeTask.DEBUG;
+
+    /**
+     * @param ceilingBytes The maximum total byte cost of the decodes in flight.
+     */
+    public DecodeMemoryLimiter(final long ceilingBytes) {
+        mCeilingBytes = ceilingBytes;
+    }
+
+    /**
+     * Estimate the byte cost of a decode, as if it decoded the whole source at its sample size.
+     *
+     * @param outWidth   The source width from the bounds pass.
+     * @param outHeight  The source height from the bounds pass.
+     * @param sampleSize The sample size of the decode.
+     * @param config     The config to decode to, or null for the default.
+     */
+    public static long estimateBytes(final int outWidth, final int outHeight,
+            final int sampleSize, final Bitmap.Config config) {
+        final int ss = Math.max(1, sampleSize);
+        // The decoders round the sampled dimensions up.
+        final long w = (outWidth + ss - 1) / ss;
+        final long h = (outHeight + ss - 1) / ss;
+        return w * h * getBytesPerPixel(config);
+    }
+
+    private static int getBytesPerPixel(final Bitmap.Config config) {
+        if (config == null) {
+            return 4;
+        }
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    private boolean fitsLocked(final long bytes) {
+        return mInFlightBytes == 0 || mInFlightBytes + bytes <= mCeilingBytes;
+    }
+
+    private void admitLocked(final long bytes) {
+        mInFlightBytes += bytes;
+        mPeakBytes = Math.max(mPeakBytes, mInFlightBytes);
+    }
+
+    /**
+     * Count the given cost as in flight if it fits, or else park the future.
+     *
+     * @return true if admitted. The caller must then {@link #release(long)} the cost. false if
+     * the future was parked. It will be resumed with {@link DecodeFuture#onAdmitted(long)} once
+     * admitted, or dropped with {@link #remove(DecodeFuture)} if cancelled.
+     */
+    boolean tryAcquire(final long bytes, final DecodeFuture future) {
+        synchronized (mLock) {
+            if (mParked.isEmpty() && fitsLocked(bytes)) {
+                admitLocked(bytes);
+                return true;
+            }
+            mWaitCount++;
+            mParked.put(future, bytes);
+            if (DEBUG) {
+                Log.d(TAG, "parked " + future + " for " + bytes + " bytes, in flight="
+                        + mInFlightBytes);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Drop a parked future that was cancelled.
+     *
+     * @return true if it was still parked. false if it has been admitted already, in which case
+     * {@link DecodeFuture#onAdmitted(long)} is or will be called.
+     */
+    boolean remove(final DecodeFuture future) {
+        synchronized (mLock) {
+            return mParked.remove(future) != null;
+        }
+    }
+
+    /**
+     * Wait on the calling thread until the given cost fits under the ceiling, then count it as
+     * in flight.
+     *
+     * @return true if admitted. The caller must then {@link #release(long)} the cost. false if
+     * the decoder was cancelled while waiting.
+     */
+    boolean acquire(final long bytes, final Decoder decoder) {
+        synchronized (mLock) {
+            if (!fitsLocked(bytes)) {
+                mWaitCount++;
+                if (DEBUG) {
+                    Log.d(TAG, "waiting to admit " + bytes + " bytes, in flight="
+                            + mInFlightBytes + " key=" + decoder.getKey());
+                }
+                Trace.beginSection("wait for decode memory");
+                try {
+                    while (!fitsLocked(bytes) && !decoder.isCancelled()) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                } finally {
+                    Trace.endSection();
+                }
+            }
+            if (decoder.isCancelled()) {
+                return false;
+            }
+            admitLocked(bytes);
+            return true;
+        }
+    }
+
+    /**
+     * Stop counting an admitted cost, and admit parked futures that now fit.
+     */
+    void release(final long bytes) {
+        List<Map.Entry<DecodeFuture, Long>> admitted = null;
+        synchronized (mLock) {
+            mInFlightBytes -= bytes;
+            final Iterator<Map.Entry<DecodeFuture, Long>> it = mParked.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<DecodeFuture, Long> entry = it.next();
+                if (!fitsLocked(entry.getValue())) {
+                    // First come, first served, so that large decodes are not starved.
+                    break;
+                }
+                admitLocked(entry.getValue());
+                it.remove();
+                if (admitted == null) {
+                    admitted = new ArrayList<Map.Entry<DecodeFuture, Long>>();
+                }
+                admitted.add(entry);
+            }
+            mLock.notifyAll();
+        }
+        if (admitted != null) {
+            for (Map.Entry<DecodeFuture, Long> entry : admitted) {
+                entry.getKey().onAdmitted(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Wake waiting decoders so that cancelled ones can give up.
+     */
+    void wakeWaiters() {
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    public long getCeilingBytes() {
+        return mCeilingBytes;
+    }
+
+    public long getInFlightBytes() {
+        synchronized (mLock) {
+            return mInFlightBytes;
+        }
+    }
+
+    /**
+     * @return The highest total cost in flight so far.
+     */
+    public long getPeakBytes() {
+        synchronized (mLock) {
+            return mPeakBytes;
+        }
+    }
+
+    /**
+     * @return The number of decodes that had to wait or were parked to be admitted.
+     */
+    public long getWaitCount() {
+        synchronized (mLock) {
+            return mWaitCount;
+        }
+    }
+}
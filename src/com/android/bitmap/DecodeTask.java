@@ -16,61 +16,41 @@
 
 package com.android.bitmap;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapRegionDecoder;
-import android.graphics.Rect;
-import android.os.AsyncTask;
-import android.os.ParcelFileDescriptor;
-import android.os.ParcelFileDescriptor.AutoCloseInputStream;
-import android.util.Log;
-
 import com.android.bitmap.RequestKey.FileDescriptorFactory;
-import com.android.bitmap.util.BitmapUtils;
-import com.android.bitmap.util.Exif;
-import com.android.bitmap.util.RectUtils;
-import com.android.bitmap.util.Trace;
 
-import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Executor;
 
 /**
  * Decodes an image from either a file descriptor or input stream on a worker thread. After the
  * decode is complete, even if the task is cancelled, the result is placed in the given cache.
  * A {@link DecodeCallback} client may be notified on decode begin and completion.
  * <p>
- * This class uses {@link BitmapRegionDecoder} when possible to minimize unnecessary decoding
- * and allow bitmap reuse on Jellybean 4.1 and later.
- * <p>
- *  GIFs are supported, but their decode does not reuse bitmaps at all. The resulting
- *  {@link ReusableBitmap} will be marked as not reusable
- *  ({@link ReusableBitmap#isEligibleForPooling()} will return false).
+ * The decode itself is done by a {@link Decoder}, run through a {@link DecodeFuture}. This class
+ * only binds the two to the main thread, or to a {@link FrameDispatcher}. Clients that want to
+ * choose their own callback executor, or wait on the result, should use {@link DecodeEngine}.
  */
-public class DecodeTask extends AsyncTask<Void, Void, ReusableBitmap> {
-
-    private final RequestKey mKey;
-    private final DecodeOptions mDecodeOpts;
-    private final FileDescriptorFactory mFactory;
-    private final DecodeCallback mDecodeCallback;
-    private final BitmapCache mCache;
-    private final BitmapFactory.Options mOpts = new BitmapFactory.Options();
+public class DecodeTask {
 
-    private ReusableBitmap mInBitmap = null;
+    private final Decoder mDecoder;
+    private final DecodeFuture mFuture;
 
-    private static final boolean CROP_DURING_DECODE = true;
-
-    private static final String TAG = DecodeTask.class.getSimpleName();
     public static final boolean DEBUG = false;
 
     /**
      * Callback interface for clients to be notified of decode state changes and completion.
+     * <p>
+     * Every method runs on the callback executor of the decode, one call at a time: the main
+     * thread for a {@link DecodeTask} created without a {@link FrameDispatcher}, the dispatcher's
+     * frame callbacks on the main thread otherwise, and the executor given to
+     * {@link DecodeEngine} or {@link DecodeFuture} for decodes started through them.
      */
     public interface DecodeCallback {
         /**
          * Notifies that the async task's work is about to begin. Up until this point, the task
          * may have been preempted by the scheduler or queued up by a bottlenecked executor.
          * <p>
-         * N.B. this method runs on the UI thread.
+         * N.B. this method runs on the callback executor, not on the decoding thread.
          */
         void onDecodeBegin(RequestKey key);
         /**
@@ -85,6 +65,25 @@ public class DecodeTask extends AsyncTask<Void, Void, ReusableBitmap> {
         void onDecodeCancel(RequestKey key);
     }
 
+    /**
+     * Optional extension of {@link DecodeCallback} for clients of progressive decodes.
+     */
+    public interface ProgressiveDecodeCallback extends DecodeCallback {
+        /**
+         * A progressive decode has decoded the bytes received so far. Runs on the same executor
+         * as the other callbacks, between onDecodeBegin and the final onDecodeComplete or
+         * onDecodeCancel, and never after either.
+         * <p>
+         * The partial result is a bitmap of its own, decoded at about the destination size. It is
+         * neither pooled nor cached and is never decoded into again, so clients may keep drawing
+         * it for as long as they like, e.g. until the final result arrives. It carries no
+         * reference: do not acquire or release one.
+         * <p>
+         * Only called when {@link DecodeOptions#progressive} is set.
+         */
+        void onDecodePartial(RequestKey key, ReusableBitmap partial);
+    }
+
     /**
    * Create new DecodeTask.
    *
@@ -97,428 +96,71 @@ public class DecodeTask extends AsyncTask<Void, Void, ReusableBitmap> {
    */
     public DecodeTask(RequestKey requestKey, DecodeOptions decodeOpts,
             FileDescriptorFactory factory, DecodeCallback callback, BitmapCache cache) {
-        mKey = requestKey;
-        mDecodeOpts = decodeOpts;
-        mFactory = factory;
-        mDecodeCallback = callback;
-        mCache = cache;
+        this(requestKey, decodeOpts, factory, callback, cache, null);
     }
 
-    @Override
-    protected ReusableBitmap doInBackground(Void... params) {
-        // enqueue the 'onDecodeBegin' signal on the main thread
-        publishProgress();
-
-        return decode();
+    /**
+     * Create new DecodeTask that delivers its callbacks through a {@link FrameDispatcher}.
+     * Callbacks are then coalesced with those of other tasks and run once per frame, instead of
+     * each being posted to the main looper.
+     *
+     * @param dispatcher The dispatcher to deliver callbacks through, or null to post them to the
+     *                   main thread.
+     */
+    public DecodeTask(RequestKey requestKey, DecodeOptions decodeOpts,
+            FileDescriptorFactory factory, DecodeCallback callback, BitmapCache cache,
+            FrameDispatcher dispatcher) {
+        mDecoder = new Decoder(requestKey, decodeOpts, factory, cache);
+        mFuture = new DecodeFuture(mDecoder, callback,
+                dispatcher != null ? dispatcher : DecodeEngine.getMainThreadExecutor());
     }
 
-    public ReusableBitmap decode() {
-        if (isCancelled()) {
-            return null;
-        }
-
-        ReusableBitmap result = null;
-        ParcelFileDescriptor fd = null;
-        InputStream in = null;
-
-        try {
-            if (mFactory != null) {
-                Trace.beginSection("create fd");
-                fd = mFactory.createFileDescriptor();
-                Trace.endSection();
-            } else {
-                in = reset(in);
-                if (in == null) {
-                    return null;
-                }
-                if (isCancelled()) {
-                    return null;
-                }
-            }
-
-            final boolean isJellyBeanOrAbove = android.os.Build.VERSION.SDK_INT
-                    >= android.os.Build.VERSION_CODES.JELLY_BEAN;
-            // This blocks during fling when the pool is empty. We block early to avoid jank.
-            if (isJellyBeanOrAbove) {
-                Trace.beginSection("poll for reusable bitmap");
-                mInBitmap = mCache.poll();
-                Trace.endSection();
-            }
-
-            if (isCancelled()) {
-                return null;
-            }
-
-            Trace.beginSection("get bytesize");
-            final long byteSize;
-            if (fd != null) {
-                byteSize = fd.getStatSize();
-            } else {
-                byteSize = -1;
-            }
-            Trace.endSection();
-
-            Trace.beginSection("get orientation");
-            final int orientation;
-            if (mKey.hasOrientationExif()) {
-                if (fd != null) {
-                    // Creating an input stream from the file descriptor makes it useless
-                    // afterwards.
-                    Trace.beginSection("create orientation fd and stream");
-                    final ParcelFileDescriptor orientationFd = mFactory.createFileDescriptor();
-                    in = new AutoCloseInputStream(orientationFd);
-                    Trace.endSection();
-                }
-                orientation = Exif.getOrientation(in, byteSize);
-                if (fd != null) {
-                    try {
-                        // Close the temporary file descriptor.
-                        in.close();
-                    } catch (IOException ignored) {
-                    }
-                }
-            } else {
-                orientation = 0;
-            }
-            final boolean isNotRotatedOr180 = orientation == 0 || orientation == 180;
-            Trace.endSection();
-
-            if (orientation != 0) {
-                // disable inBitmap-- bitmap reuse doesn't work with different decode regions due
-                // to orientation
-                if (mInBitmap != null) {
-                    mCache.offer(mInBitmap);
-                    mInBitmap = null;
-                    mOpts.inBitmap = null;
-                }
-            }
-
-            if (isCancelled()) {
-                return null;
-            }
-
-            if (fd == null) {
-                in = reset(in);
-                if (in == null) {
-                    return null;
-                }
-                if (isCancelled()) {
-                    return null;
-                }
-            }
-
-            Trace.beginSection("decodeBounds");
-            mOpts.inJustDecodeBounds = true;
-            if (fd != null) {
-                BitmapFactory.decodeFileDescriptor(fd.getFileDescriptor(), null, mOpts);
-            } else {
-                BitmapFactory.decodeStream(in, null, mOpts);
-            }
-            Trace.endSection();
-
-            if (isCancelled()) {
-                return null;
-            }
-
-            // We want to calculate the sample size "as if" the orientation has been corrected.
-            final int srcW, srcH; // Orientation corrected.
-            if (isNotRotatedOr180) {
-                srcW = mOpts.outWidth;
-                srcH = mOpts.outHeight;
-            } else {
-                srcW = mOpts.outHeight;
-                srcH = mOpts.outWidth;
-            }
-
-            // BEGIN MANUAL-INLINE calculateSampleSize()
-
-            final float sz = Math
-                    .min((float) srcW / mDecodeOpts.destW, (float) srcH / mDecodeOpts.destH);
-
-            final int sampleSize;
-            switch (mDecodeOpts.sampleSizeStrategy) {
-                case DecodeOptions.STRATEGY_TRUNCATE:
-                    sampleSize = (int) sz;
-                    break;
-                case DecodeOptions.STRATEGY_ROUND_UP:
-                    sampleSize = (int) Math.ceil(sz);
-                    break;
-                case DecodeOptions.STRATEGY_ROUND_NEAREST:
-                default:
-                    sampleSize = (int) Math.pow(2, (int) (0.5 + (Math.log(sz) / Math.log(2))));
-                    break;
-            }
-            mOpts.inSampleSize = Math.max(1, sampleSize);
-
-            // END MANUAL-INLINE calculateSampleSize()
-
-            mOpts.inJustDecodeBounds = false;
-            mOpts.inMutable = true;
-            if (isJellyBeanOrAbove && orientation == 0) {
-                if (mInBitmap == null) {
-                    if (DEBUG) {
-                        Log.e(TAG, "decode thread wants a bitmap. cache dump:\n"
-                                + mCache.toDebugString());
-                    }
-                    Trace.beginSection("create reusable bitmap");
-                    mInBitmap = new ReusableBitmap(
-                            Bitmap.createBitmap(mDecodeOpts.destW, mDecodeOpts.destH,
-                                    Bitmap.Config.ARGB_8888));
-                    Trace.endSection();
-
-                    if (isCancelled()) {
-                        return null;
-                    }
-
-                    if (DEBUG) {
-                        Log.e(TAG, "*** allocated new bitmap in decode thread: "
-                                + mInBitmap + " key=" + mKey);
-                    }
-                } else {
-                    if (DEBUG) {
-                        Log.e(TAG, "*** reusing existing bitmap in decode thread: "
-                                + mInBitmap + " key=" + mKey);
-                    }
-
-                }
-                mOpts.inBitmap = mInBitmap.bmp;
-            }
-
-            if (isCancelled()) {
-                return null;
-            }
-
-            if (fd == null) {
-                in = reset(in);
-                if (in == null) {
-                    return null;
-                }
-                if (isCancelled()) {
-                    return null;
-                }
-            }
-
-
-            Bitmap decodeResult = null;
-            final Rect srcRect = new Rect(); // Not orientation corrected. True coordinates.
-            if (CROP_DURING_DECODE) {
-                try {
-                    Trace.beginSection("decodeCropped" + mOpts.inSampleSize);
-
-                    // BEGIN MANUAL INLINE decodeCropped()
-
-                    final BitmapRegionDecoder brd;
-                    if (fd != null) {
-                        brd = BitmapRegionDecoder
-                                .newInstance(fd.getFileDescriptor(), true /* shareable */);
-                    } else {
-                        brd = BitmapRegionDecoder.newInstance(in, true /* shareable */);
-                    }
-
-                    final Bitmap bitmap;
-                    if (isCancelled()) {
-                        bitmap = null;
-                    } else {
-                        // We want to call calculateCroppedSrcRect() on the source rectangle "as
-                        // if" the orientation has been corrected.
-                        // Center the decode on the top 1/3.
-                        BitmapUtils.calculateCroppedSrcRect(srcW, srcH, mDecodeOpts.destW,
-                                mDecodeOpts.destH,
-                                mDecodeOpts.destH, mOpts.inSampleSize, mDecodeOpts.verticalCenter,
-                                true /* absoluteFraction */,
-                                1f, srcRect);
-                        if (DEBUG) {
-                            System.out.println("rect for this decode is: " + srcRect
-                                    + " srcW/H=" + srcW + "/" + srcH
-                                    + " dstW/H=" + mDecodeOpts.destW + "/" + mDecodeOpts.destH);
-                        }
-
-                        // calculateCroppedSrcRect() gave us the source rectangle "as if" the
-                        // orientation has been corrected. We need to decode the uncorrected
-                        // source rectangle. Calculate true coordinates.
-                        RectUtils.rotateRectForOrientation(orientation, new Rect(0, 0, srcW, srcH),
-                                srcRect);
-
-                        bitmap = brd.decodeRegion(srcRect, mOpts);
-                    }
-                    brd.recycle();
-
-                    // END MANUAL INLINE decodeCropped()
-
-                    decodeResult = bitmap;
-                } catch (IOException e) {
-                    // fall through to below and try again with the non-cropping decoder
-                    if (fd == null) {
-                        in = reset(in);
-                        if (in == null) {
-                            return null;
-                        }
-                        if (isCancelled()) {
-                            return null;
-                        }
-                    }
-
-                    e.printStackTrace();
-                } finally {
-                    Trace.endSection();
-                }
-
-                if (isCancelled()) {
-                    return null;
-                }
-            }
-
-            //noinspection PointlessBooleanExpression
-            if (!CROP_DURING_DECODE || (decodeResult == null && !isCancelled())) {
-                try {
-                    Trace.beginSection("decode" + mOpts.inSampleSize);
-                    // disable inBitmap-- bitmap reuse doesn't work well below K
-                    if (mInBitmap != null) {
-                        mCache.offer(mInBitmap);
-                        mInBitmap = null;
-                        mOpts.inBitmap = null;
-                    }
-                    decodeResult = decode(fd, in);
-                } catch (IllegalArgumentException e) {
-                    Log.e(TAG, "decode failed: reason='" + e.getMessage() + "' ss="
-                            + mOpts.inSampleSize);
-
-                    if (mOpts.inSampleSize > 1) {
-                        // try again with ss=1
-                        mOpts.inSampleSize = 1;
-                        decodeResult = decode(fd, in);
-                    }
-                } finally {
-                    Trace.endSection();
-                }
-
-                if (isCancelled()) {
-                    return null;
-                }
-            }
-
-            if (decodeResult == null) {
-                return null;
-            }
-
-            if (mInBitmap != null) {
-                result = mInBitmap;
-                // srcRect is non-empty when using the cropping BitmapRegionDecoder codepath
-                if (!srcRect.isEmpty()) {
-                    result.setLogicalWidth((srcRect.right - srcRect.left) / mOpts.inSampleSize);
-                    result.setLogicalHeight(
-                            (srcRect.bottom - srcRect.top) / mOpts.inSampleSize);
-                } else {
-                    result.setLogicalWidth(mOpts.outWidth);
-                    result.setLogicalHeight(mOpts.outHeight);
-                }
-            } else {
-                // no mInBitmap means no pooling
-                result = new ReusableBitmap(decodeResult, false /* reusable */);
-                if (isNotRotatedOr180) {
-                    result.setLogicalWidth(decodeResult.getWidth());
-                    result.setLogicalHeight(decodeResult.getHeight());
-                } else {
-                    result.setLogicalWidth(decodeResult.getHeight());
-                    result.setLogicalHeight(decodeResult.getWidth());
-                }
-            }
-            result.setOrientation(orientation);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (fd != null) {
-                try {
-                    fd.close();
-                } catch (IOException ignored) {
-                }
-            }
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException ignored) {
-                }
-            }
-
-            // Put result in cache, regardless of null.  The cache will handle null results.
-            mCache.put(mKey, result);
-            if (result != null) {
-                result.acquireReference();
-                if (DEBUG) {
-                    Log.d(TAG, "placed result in cache: key=" + mKey + " bmp="
-                        + result + " cancelled=" + isCancelled());
-                }
-            } else if (mInBitmap != null) {
-                if (DEBUG) {
-                    Log.d(TAG, "placing failed/cancelled bitmap in pool: key="
-                        + mKey + " bmp=" + mInBitmap);
-                }
-                mCache.offer(mInBitmap);
-            }
-        }
-        return result;
+    /**
+     * Set an optional throttle to limit pixel decodes while a list scrolls. Must be called
+     * before {@link #executeOnExecutor(Executor)}.
+     */
+    public void setThrottle(ScrollThrottle throttle) {
+        mFuture.setThrottle(throttle);
     }
 
     /**
-     * Return an input stream that can be read from the beginning using the most efficient way,
-     * given an input stream that may or may not support reset(), or given null.
-     *
-     * The returned input stream may or may not be the same stream.
+     * Decode from a stream opened ahead of time, e.g. with
+     * {@link RequestKey.AsyncInputStreamSource}, instead of calling
+     * {@link RequestKey#createInputStream()} on the decode thread. The task owns and closes the
+     * stream. Must be called before {@link #executeOnExecutor(Executor)}.
      */
-    private InputStream reset(InputStream in) throws IOException {
-        Trace.beginSection("create stream");
-        if (in == null) {
-            in = mKey.createInputStream();
-        } else if (in.markSupported()) {
-            in.reset();
-        } else {
-            try {
-                in.close();
-            } catch (IOException ignored) {
-            }
-            in = mKey.createInputStream();
-        }
-        Trace.endSection();
-        return in;
+    public void setInputStream(InputStream stream) {
+        mDecoder.setSourceStream(stream);
     }
 
-    private Bitmap decode(ParcelFileDescriptor fd, InputStream in) {
-        final Bitmap result;
-        if (fd != null) {
-            result = BitmapFactory.decodeFileDescriptor(fd.getFileDescriptor(), null, mOpts);
-        } else {
-            result = BitmapFactory.decodeStream(in, null, mOpts);
-        }
-        return result;
+    /**
+     * Start the decode on the given executor.
+     */
+    public DecodeTask executeOnExecutor(Executor executor) {
+        mFuture.executeOn(executor);
+        return this;
     }
 
-    public void cancel() {
-        cancel(true);
-        mOpts.requestCancelDecode();
+    /**
+     * Decode synchronously on the calling thread, without notifying the callback.
+     */
+    public ReusableBitmap decode() {
+        return mDecoder.decode();
     }
 
-    @Override
-    protected void onProgressUpdate(Void... values) {
-        mDecodeCallback.onDecodeBegin(mKey);
+    public void cancel() {
+        mFuture.cancel();
     }
 
-    @Override
-    public void onPostExecute(ReusableBitmap result) {
-        mDecodeCallback.onDecodeComplete(mKey, result);
+    public boolean isCancelled() {
+        return mFuture.isCancelled();
     }
 
-    @Override
-    protected void onCancelled(ReusableBitmap result) {
-        mDecodeCallback.onDecodeCancel(mKey);
-        if (result == null) {
-            return;
-        }
-
-        result.releaseReference();
-        if (mInBitmap == null) {
-            // not reusing bitmaps: can recycle immediately
-            result.bmp.recycle();
-        }
+    /**
+     * @return The future backing this task, to wait on or listen to its result.
+     */
+    public DecodeFuture getFuture() {
+        return mFuture;
     }
 
     /**
@@ -543,6 +185,19 @@ public class DecodeTask extends AsyncTask<Void, Void, ReusableBitmap> {
          */
         public static final int STRATEGY_ROUND_UP = 2;
 
+        /**
+         * Decode from the same region as {@link #STRATEGY_ROUND_UP}, at the largest power of 2
+         * sample size that still gives at least the destination size, then resample to exactly
+         * the destination size. A drawable whose bounds match the destination dimensions can
+         * then draw the result without scaling.
+         */
+        public static final int STRATEGY_EXACT = 3;
+
+        /**
+         * The default minimum time between two partial results of a progressive decode.
+         */
+        public static final int DEFAULT_PROGRESSIVE_INTERVAL_MS = 200;
+
         /**
          * The destination width to decode to.
          */
@@ -561,6 +216,31 @@ public class DecodeTask extends AsyncTask<Void, Void, ReusableBitmap> {
          * One of the STRATEGY constants.
          */
         public int sampleSizeStrategy;
+        /**
+         * Optional cache of source metadata. If set, the decode will skip the Exif and bounds
+         * passes for sources it has already seen, and will remember the metadata of new sources.
+         */
+        public MetadataCache metadataCache;
+        /**
+         * Optional admission control. If set, the pixel decode only starts once its estimated
+         * memory cost fits under the limiter's ceiling.
+         */
+        public DecodeMemoryLimiter memoryLimiter;
+        /**
+         * Whether to decode an input stream source progressively, for slow sources such as the
+         * network. While the source is read, the bytes received so far are periodically decoded,
+         * e.g. the first scans of a progressive JPEG or the first passes of an interlaced PNG,
+         * and delivered to a {@link ProgressiveDecodeCallback}. The whole source is kept in
+         * memory until the decode ends. A pooled bitmap is only taken once the whole source has
+         * been read, but the decode thread is held while reading it; prefer
+         * {@link RequestKey.AsyncInputStreamSource} for sources that are slow to start. Ignored
+         * for file descriptor sources.
+         */
+        public boolean progressive;
+        /**
+         * The minimum time between two partial results of a progressive decode.
+         */
+        public int progressiveIntervalMs = DEFAULT_PROGRESSIVE_INTERVAL_MS;
 
         public DecodeOptions(final int destW, final int destH) {
             this(destW, destH, 0.5f, STRATEGY_ROUND_NEAREST);
@@ -0,0 +1,1191 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.ParcelFileDescriptor;
+import android.os.ParcelFileDescriptor.AutoCloseInputStream;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.bitmap.DecodeTask.DecodeOptions;
+import com.android.bitmap.RequestKey.FileDescriptorFactory;
+import com.android.bitmap.util.BitmapUtils;
+import com.android.bitmap.util.Exif;
+import com.android.bitmap.util.RectUtils;
+import com.android.bitmap.util.Trace;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Synchronously decodes an image from either a file descriptor or input stream on the calling
+ * thread. After the decode is complete, even if it was cancelled, the result is placed in the
+ * given cache.
+ * <p>
+ * This class uses {@link BitmapRegionDecoder} when possible to minimize unnecessary decoding
+ * and allow bitmap reuse on Jellybean 4.1 and later.
+ * <p>
+ *  GIFs are supported, but their decode does not reuse bitmaps at all. The resulting
+ *  {@link ReusableBitmap} will be marked as not reusable
+ *  ({@link ReusableBitmap#isEligibleForPooling()} will return false).
+ *  Only the first frame is decoded; use
+ *  {@link com.android.bitmap.drawable.AnimatedGifDrawable} to play animated GIFs.
+ * <p>
+ * With {@link DecodeOptions#progressive}, an input stream source is decoded progressively: the
+ * bytes received so far are periodically decoded into the pooled target bitmap and handed to the
+ * {@link ProgressListener}, until the source ends and the final decode runs.
+ * <p>
+ * A Decoder has no thread or Looper affinity. It is usually run by a {@link DecodeFuture}.
+ * Each Decoder can only be used for a single decode.
+ */
+public class Decoder {
+
+    private final RequestKey mKey;
+    private final DecodeOptions mDecodeOpts;
+    private final FileDescriptorFactory mFactory;
+    private final BitmapCache mCache;
+    private final BitmapFactory.Options mOpts = new BitmapFactory.Options();
+
+    private volatile boolean mCancelled = false;
+    private ReusableBitmap mInBitmap = null;
+    /**
+     * Whether the pool has already been polled for mInBitmap on our behalf.
+     */
+    private boolean mPolled = false;
+
+    /**
+     * The start time of {@link #decode()}, and the last {@link CancellationStats} phase it
+     * reached. Used to account for the work wasted by a cancellation.
+     */
+    private long mStartNanos;
+    private int mPhase = CancellationStats.PHASE_QUEUED;
+
+    /**
+     * When the decode ended, or 0, the time spent in the decoder calls that produce pixels, and
+     * the number of pixels they produced. Used to split the decode time between the I/O and
+     * header stage and the pixel decode stage.
+     */
+    private long mEndNanos;
+    private long mPixelDecodeNanos;
+    private long mDecodedPixels;
+
+    /**
+     * The cost admitted by mDecodeOpts.memoryLimiter, either by a {@link DecodeFuture} before the
+     * decode started or by {@link #decode()} itself, to release once the decode ends.
+     */
+    private long mAdmittedBytes;
+
+    /**
+     * The metadata of the source, once known from the metadata cache or read by
+     * {@link #loadMetadata()} ahead of the decode.
+     */
+    private volatile MetadataCache.Metadata mMetadata;
+
+    /**
+     * The buffered source of a progressive decode, or null.
+     */
+    private StreamBuffer mStreamBuffer;
+    /**
+     * A stream opened ahead of the decode, to decode from instead of the key's input stream.
+     */
+    private InputStream mSourceStream;
+    private ProgressListener mProgressListener;
+
+    private static final CancellationStats sCancellationStats = new CancellationStats();
+
+    private static final Paint sResamplePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private static final boolean CROP_DURING_DECODE = true;
+
+    private static final String TAG = Decoder.class.getSimpleName();
+    private static final boolean DEBUG = DecodeTask.DEBUG;
+
+    /**
+     * Create new Decoder.
+     *
+     * @param requestKey The request to decode, also the key to use for the cache.
+     * @param decodeOpts The decode options.
+     * @param factory    The factory to obtain file descriptors to decode from. If this factory is
+     *                   null, then we will decode from requestKey.createInputStream().
+     * @param cache      The cache and pool.
+     */
+    public Decoder(RequestKey requestKey, DecodeOptions decodeOpts,
+            FileDescriptorFactory factory, BitmapCache cache) {
+        mKey = requestKey;
+        mDecodeOpts = decodeOpts;
+        mFactory = factory;
+        mCache = cache;
+    }
+
+    public RequestKey getKey() {
+        return mKey;
+    }
+
+    /**
+     * Set the listener to hand partial results of a progressive decode to. Must be called before
+     * the decode begins.
+     */
+    void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Decode from the given stream, opened ahead of the decode, e.g. with
+     * {@link RequestKey.AsyncInputStreamSource}, instead of from the key's input stream. The
+     * decoder owns and closes the stream. A stream that supports mark and reset is rewound to be
+     * read again; any other stream is held in memory for the duration of the decode. Must be
+     * called before the decode begins, and is ignored if the decoder has a file descriptor
+     * factory.
+     */
+    void setSourceStream(InputStream stream) {
+        mSourceStream = stream;
+    }
+
+    /**
+     * Request that the decode stop as soon as possible. This may be called from any thread. It
+     * does not interrupt the decoding thread, so I/O in progress is allowed to finish.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mOpts.requestCancelDecode();
+        if (mDecodeOpts.memoryLimiter != null) {
+            mDecodeOpts.memoryLimiter.wakeWaiters();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return The counters of work wasted by cancelled decodes, shared by all decoders.
+     */
+    public static CancellationStats getCancellationStats() {
+        return sCancellationStats;
+    }
+
+    /**
+     * A cancellation checkpoint between two phases of the decode.
+     *
+     * @param phase The {@link CancellationStats} phase about to begin.
+     * @return true if the decode should stop. Callers must then return without further cleanup.
+     */
+    private boolean checkpoint(int phase) {
+        mPhase = phase;
+        return mCancelled;
+    }
+
+    /**
+     * @return The time {@link #decode()} spent on anything but decoding pixels, e.g. opening and
+     * reading the source, reading its headers and acquiring a bitmap, or 0 if it did not decode
+     * any pixels.
+     */
+    long getIoNanos() {
+        return mDecodedPixels > 0 ? mEndNanos - mStartNanos - mPixelDecodeNanos : 0;
+    }
+
+    /**
+     * @return The time {@link #decode()} spent in the decoder calls that produce pixels, or 0 if
+     * it did not decode any pixels.
+     */
+    long getPixelDecodeNanos() {
+        return mDecodedPixels > 0 ? mPixelDecodeNanos : 0;
+    }
+
+    /**
+     * @return The number of pixels decoded by {@link #decode()}, or 0.
+     */
+    long getDecodedPixels() {
+        return mDecodedPixels;
+    }
+
+    /**
+     * Run the decode on the calling thread.
+     *
+     * @return The result, with a reference acquired for the caller, or null if the decode failed
+     * or was cancelled.
+     */
+    public ReusableBitmap decode() {
+        mStartNanos = System.nanoTime();
+        ReusableBitmap result = null;
+        ParcelFileDescriptor fd = null;
+        InputStream in = null;
+        Bitmap decodeResult = null;
+
+        try {
+            if (checkpoint(CancellationStats.PHASE_QUEUED)) {
+                return null;
+            }
+
+            mPhase = CancellationStats.PHASE_OPEN;
+            if (mFactory != null) {
+                Trace.beginSection("create fd");
+                fd = mFactory.createFileDescriptor();
+                Trace.endSection();
+            } else if (mDecodeOpts.progressive || mSourceStream != null) {
+                Trace.beginSection("create stream");
+                final InputStream source =
+                        mSourceStream != null ? mSourceStream : mKey.createInputStream();
+                // From here on, the source is closed through in.
+                mSourceStream = null;
+                Trace.endSection();
+                if (source == null) {
+                    return null;
+                }
+                if (!mDecodeOpts.progressive && source.markSupported()) {
+                    // Rewind the source itself to read it again from the start.
+                    source.mark(Integer.MAX_VALUE);
+                    in = source;
+                } else {
+                    // A source stream cannot be opened again, so buffer it to read it again
+                    // from the start. A progressive decode buffers it anyway to decode
+                    // partial results from.
+                    final StreamBuffer buffer = new StreamBuffer(source);
+                    in = buffer.newStream();
+                    if (mDecodeOpts.progressive) {
+                        mStreamBuffer = buffer;
+                    }
+                }
+                if (mDecodeOpts.progressive) {
+                    // Read the whole source before taking a bitmap from the pool or admitting
+                    // the decode, so that neither is held while a slow source trickles in.
+                    readProgressively();
+                    if (checkpoint(CancellationStats.PHASE_OPEN)) {
+                        return null;
+                    }
+                }
+            } else {
+                in = reset(in);
+                if (in == null) {
+                    return null;
+                }
+            }
+
+            if (checkpoint(CancellationStats.PHASE_ALLOCATE)) {
+                return null;
+            }
+
+            if (checkpoint(CancellationStats.PHASE_METADATA)) {
+                return null;
+            }
+
+            Trace.beginSection("get bytesize");
+            final long byteSize;
+            if (fd != null) {
+                byteSize = fd.getStatSize();
+            } else {
+                byteSize = -1;
+            }
+            Trace.endSection();
+
+            // If we have decoded this source before, skip the Exif and bounds passes. The byte
+            // size guards against the source having changed since.
+            final MetadataCache metadataCache = mDecodeOpts.metadataCache;
+            final MetadataCache.Metadata known = mMetadata;
+            final MetadataCache.Metadata metadata;
+            if (known != null && (byteSize < 0 || known.byteSize < 0
+                    || known.byteSize == byteSize)) {
+                metadata = known;
+            } else if (metadataCache != null) {
+                Trace.beginSection("get metadata");
+                final MetadataCache.Metadata cached = new MetadataCache.Metadata();
+                if (metadataCache.get(mKey, cached)
+                        && (byteSize < 0 || cached.byteSize < 0 || cached.byteSize == byteSize)) {
+                    metadata = cached;
+                } else {
+                    metadata = null;
+                }
+                Trace.endSection();
+            } else {
+                metadata = null;
+            }
+
+            Trace.beginSection("get orientation");
+            final int exifOrientation;
+            if (metadata != null) {
+                exifOrientation = metadata.exifOrientation;
+            } else if (mKey.hasOrientationExif()) {
+                if (fd != null) {
+                    exifOrientation = getExifOrientation(fd, byteSize);
+                } else {
+                    exifOrientation = Exif.getExifOrientation(in, byteSize);
+                }
+            } else {
+                exifOrientation = Exif.ORIENTATION_NORMAL;
+            }
+            // Mirrored orientations are flipped at draw time, so only the rotation affects the
+            // decode.
+            final int orientation = Exif.getRotation(exifOrientation);
+            final boolean flipped = Exif.isFlipped(exifOrientation);
+            final boolean isNotRotatedOr180 = orientation == 0 || orientation == 180;
+            Trace.endSection();
+
+            if (orientation != 0) {
+                // disable inBitmap-- bitmap reuse doesn't work with different decode regions due
+                // to orientation
+                releaseInBitmap();
+            }
+
+            if (checkpoint(CancellationStats.PHASE_METADATA)) {
+                return null;
+            }
+
+            if (metadata != null) {
+                mOpts.outWidth = metadata.width;
+                mOpts.outHeight = metadata.height;
+                mOpts.outMimeType = metadata.mimeType;
+            } else {
+                if (fd == null) {
+                    in = reset(in);
+                    if (in == null) {
+                        return null;
+                    }
+                }
+
+                Trace.beginSection("decodeBounds");
+                mOpts.inJustDecodeBounds = true;
+                if (fd != null) {
+                    BitmapFactory.decodeFileDescriptor(fd.getFileDescriptor(), null, mOpts);
+                } else {
+                    BitmapFactory.decodeStream(in, null, mOpts);
+                }
+                Trace.endSection();
+
+                if (metadataCache != null) {
+                    metadataCache.put(mKey, mOpts.outWidth, mOpts.outHeight, exifOrientation,
+                            mOpts.outMimeType, byteSize);
+                }
+            }
+
+            if (checkpoint(CancellationStats.PHASE_ALLOCATE)) {
+                return null;
+            }
+
+            // We want to calculate the sample size "as if" the orientation has been corrected.
+            final int srcW, srcH; // Orientation corrected.
+            if (isNotRotatedOr180) {
+                srcW = mOpts.outWidth;
+                srcH = mOpts.outHeight;
+            } else {
+                srcW = mOpts.outHeight;
+                srcH = mOpts.outWidth;
+            }
+
+            mOpts.inSampleSize = calculateSampleSize(srcW, srcH);
+
+            // Admit the decode at the cost of a full-size decode at this sample size, before
+            // taking a bitmap from the pool, so that no pooled bitmap is held while waiting. This
+            // bounds the sampled region of the cropped and exact paths, and the non-cropping
+            // fallback. Decodes run by a DecodeFuture have usually been admitted already, without
+            // holding a thread.
+            if (!admit(DecodeMemoryLimiter.estimateBytes(mOpts.outWidth, mOpts.outHeight,
+                    mOpts.inSampleSize, mOpts.inPreferredConfig))) {
+                checkpoint(CancellationStats.PHASE_ALLOCATE);
+                return null;
+            }
+
+            final boolean isJellyBeanOrAbove = android.os.Build.VERSION.SDK_INT
+                    >= android.os.Build.VERSION_CODES.JELLY_BEAN;
+            // This blocks during fling when the pool is empty. We block before the pixel decode
+            // to avoid jank.
+            if (isJellyBeanOrAbove && !mPolled && orientation == 0) {
+                Trace.beginSection("poll for reusable bitmap");
+                mInBitmap = mCache.poll();
+                Trace.endSection();
+            }
+
+            mOpts.inJustDecodeBounds = false;
+            mOpts.inMutable = true;
+            if (isJellyBeanOrAbove && orientation == 0) {
+                if (mInBitmap == null) {
+                    if (DEBUG) {
+                        Log.e(TAG, "decode thread wants a bitmap. cache dump:\n"
+                                + mCache.toDebugString());
+                    }
+                    Trace.beginSection("create reusable bitmap");
+                    mInBitmap = new ReusableBitmap(
+                            Bitmap.createBitmap(mDecodeOpts.destW, mDecodeOpts.destH,
+                                    Bitmap.Config.ARGB_8888));
+                    Trace.endSection();
+
+                    if (DEBUG) {
+                        Log.e(TAG, "*** allocated new bitmap in decode thread: "
+                                + mInBitmap + " key=" + mKey);
+                    }
+                } else {
+                    if (DEBUG) {
+                        Log.e(TAG, "*** reusing existing bitmap in decode thread: "
+                                + mInBitmap + " key=" + mKey);
+                    }
+
+                }
+                mOpts.inBitmap = mInBitmap.bmp;
+            }
+
+            if (checkpoint(CancellationStats.PHASE_DECODE)) {
+                return null;
+            }
+
+            if (fd == null) {
+                in = reset(in);
+                if (in == null) {
+                    return null;
+                }
+            }
+
+            final boolean exact =
+                    mDecodeOpts.sampleSizeStrategy == DecodeOptions.STRATEGY_EXACT;
+            final Rect srcRect = new Rect(); // Not orientation corrected. True coordinates.
+            if (CROP_DURING_DECODE) {
+                // We want to call calculateCroppedSrcRect() on the source rectangle "as if" the
+                // orientation has been corrected.
+                // Center the decode on the top 1/3.
+                // An exact decode always covers the whole destination, and resamples the rest.
+                BitmapUtils.calculateCroppedSrcRect(srcW, srcH, mDecodeOpts.destW,
+                        mDecodeOpts.destH,
+                        mDecodeOpts.destH, exact ? Integer.MAX_VALUE : mOpts.inSampleSize,
+                        mDecodeOpts.verticalCenter,
+                        true /* absoluteFraction */,
+                        1f, srcRect);
+                if (DEBUG) {
+                    System.out.println("rect for this decode is: " + srcRect
+                            + " srcW/H=" + srcW + "/" + srcH
+                            + " dstW/H=" + mDecodeOpts.destW + "/" + mDecodeOpts.destH);
+                }
+
+                // calculateCroppedSrcRect() gave us the source rectangle "as if" the
+                // orientation has been corrected. We need to decode the uncorrected
+                // source rectangle. Calculate true coordinates.
+                RectUtils.rotateRectForOrientation(orientation, flipped,
+                        new Rect(0, 0, srcW, srcH), srcRect);
+            }
+
+            if (CROP_DURING_DECODE) {
+                try {
+                    Trace.beginSection("decodeCropped" + mOpts.inSampleSize);
+
+                    // BEGIN MANUAL INLINE decodeCropped()
+
+                    final BitmapRegionDecoder brd;
+                    if (fd != null) {
+                        brd = BitmapRegionDecoder
+                                .newInstance(fd.getFileDescriptor(), true /* shareable */);
+                    } else {
+                        brd = BitmapRegionDecoder.newInstance(in, true /* shareable */);
+                    }
+
+                    Bitmap bitmap = null;
+                    try {
+                        if (checkpoint(CancellationStats.PHASE_DECODE)) {
+                            return null;
+                        }
+                        if (exact) {
+                            bitmap = decodeRegionExact(brd, srcRect, isNotRotatedOr180);
+                        } else {
+                            bitmap = decodeRegion(brd, srcRect);
+                        }
+                    } finally {
+                        brd.recycle();
+                    }
+
+                    // END MANUAL INLINE decodeCropped()
+
+                    decodeResult = bitmap;
+                } catch (IOException e) {
+                    // fall through to below and try again with the non-cropping decoder
+                    if (fd == null) {
+                        in = reset(in);
+                        if (in == null) {
+                            return null;
+                        }
+                    }
+
+                    e.printStackTrace();
+                } finally {
+                    Trace.endSection();
+                }
+
+                if (checkpoint(CancellationStats.PHASE_DECODE)) {
+                    return null;
+                }
+            }
+
+            //noinspection PointlessBooleanExpression
+            if (!CROP_DURING_DECODE || decodeResult == null) {
+                try {
+                    Trace.beginSection("decode" + mOpts.inSampleSize);
+                    // disable inBitmap-- bitmap reuse doesn't work well below K
+                    releaseInBitmap();
+                    decodeResult = decode(fd, in);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "decode failed: reason='" + e.getMessage() + "' ss="
+                            + mOpts.inSampleSize);
+
+                    if (mOpts.inSampleSize > 1) {
+                        // try again with ss=1, once the larger decode is admitted
+                        mOpts.inSampleSize = 1;
+                        if (!admit(DecodeMemoryLimiter.estimateBytes(mOpts.outWidth,
+                                mOpts.outHeight, 1, mOpts.inPreferredConfig))) {
+                            return null;
+                        }
+                        decodeResult = decode(fd, in);
+                    }
+                } finally {
+                    Trace.endSection();
+                }
+
+                if (checkpoint(CancellationStats.PHASE_DECODE)) {
+                    return null;
+                }
+            }
+
+            if (decodeResult == null) {
+                return null;
+            }
+
+            if (mInBitmap != null) {
+                result = mInBitmap;
+                // srcRect is non-empty when using the cropping BitmapRegionDecoder codepath
+                if (!srcRect.isEmpty() && exact) {
+                    result.setLogicalWidth(mDecodeOpts.destW);
+                    result.setLogicalHeight(mDecodeOpts.destH);
+                } else if (!srcRect.isEmpty()) {
+                    result.setLogicalWidth((srcRect.right - srcRect.left) / mOpts.inSampleSize);
+                    result.setLogicalHeight(
+                            (srcRect.bottom - srcRect.top) / mOpts.inSampleSize);
+                } else {
+                    result.setLogicalWidth(mOpts.outWidth);
+                    result.setLogicalHeight(mOpts.outHeight);
+                }
+            } else {
+                // no mInBitmap means no pooling
+                result = new ReusableBitmap(decodeResult, false /* reusable */);
+                if (isNotRotatedOr180) {
+                    result.setLogicalWidth(decodeResult.getWidth());
+                    result.setLogicalHeight(decodeResult.getHeight());
+                } else {
+                    result.setLogicalWidth(decodeResult.getHeight());
+                    result.setLogicalHeight(decodeResult.getWidth());
+                }
+            }
+            result.setOrientation(orientation);
+            result.setFlipped(flipped);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            cleanup(fd, in, decodeResult, result);
+        }
+        return result;
+    }
+
+    /**
+     * Read the rest of a progressive source into mStreamBuffer, periodically decoding the bytes
+     * received so far and handing them to the progress listener.
+     */
+    private void readProgressively() throws IOException {
+        Trace.beginSection("read progressively");
+        try {
+            long lastPartialMs = SystemClock.uptimeMillis();
+            while (mStreamBuffer.fill()) {
+                if (mCancelled) {
+                    return;
+                }
+                final long now = SystemClock.uptimeMillis();
+                if (mProgressListener == null
+                        || now - lastPartialMs < mDecodeOpts.progressiveIntervalMs) {
+                    continue;
+                }
+                lastPartialMs = now;
+
+                final ReusableBitmap partial = decodePartial();
+                if (partial == null || mCancelled) {
+                    continue;
+                }
+                if (DEBUG) {
+                    Log.d(TAG, "partial decode: key=" + mKey + " bytes="
+                            + mStreamBuffer.getLength());
+                }
+                mProgressListener.onPartialDecode(partial);
+            }
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Decode the bytes of mStreamBuffer received so far into a bitmap of their own, sampled down
+     * close to the destination size. The partial result is neither pooled nor cached.
+     *
+     * @return The partial result, or null if not enough of the source has arrived yet.
+     */
+    private ReusableBitmap decodePartial() throws IOException {
+        final byte[] data = mStreamBuffer.getData();
+        final int length = mStreamBuffer.getLength();
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+
+        final int exifOrientation = mKey.hasOrientationExif()
+                ? Exif.getExifOrientation(new ByteArrayInputStream(data, 0, length), length)
+                : Exif.ORIENTATION_NORMAL;
+        final int orientation = Exif.getRotation(exifOrientation);
+        final boolean isNotRotatedOr180 = orientation == 0 || orientation == 180;
+        final int srcW = isNotRotatedOr180 ? opts.outWidth : opts.outHeight;
+        final int srcH = isNotRotatedOr180 ? opts.outHeight : opts.outWidth;
+        final int sz = Math.min(srcW / Math.max(1, mDecodeOpts.destW),
+                srcH / Math.max(1, mDecodeOpts.destH));
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = Math.max(1, Integer.highestOneBit(sz));
+        final Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, opts);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (bitmap == null) {
+            return null;
+        }
+
+        final ReusableBitmap partial = new ReusableBitmap(bitmap, false /* reusable */);
+        if (isNotRotatedOr180) {
+            partial.setLogicalWidth(bitmap.getWidth());
+            partial.setLogicalHeight(bitmap.getHeight());
+        } else {
+            partial.setLogicalWidth(bitmap.getHeight());
+            partial.setLogicalHeight(bitmap.getWidth());
+        }
+        partial.setOrientation(orientation);
+        partial.setFlipped(Exif.isFlipped(exifOrientation));
+        return partial;
+    }
+
+    /**
+     * Decode the given region at the sample size, then resample it to exactly the destination
+     * size, into mInBitmap if we have one or into a new bitmap otherwise.
+     *
+     * @param srcRect           The region to decode, in true coordinates.
+     * @param isNotRotatedOr180 Whether the destination dimensions are in true coordinates.
+     * @return The result, or null if the decode failed.
+     */
+    private Bitmap decodeRegionExact(BitmapRegionDecoder brd, Rect srcRect,
+            boolean isNotRotatedOr180) {
+        final int dstW = isNotRotatedOr180 ? mDecodeOpts.destW : mDecodeOpts.destH;
+        final int dstH = isNotRotatedOr180 ? mDecodeOpts.destH : mDecodeOpts.destW;
+        final int sampleSize = mOpts.inSampleSize;
+        if (mInBitmap != null && (srcRect.right - srcRect.left) / sampleSize == dstW
+                && (srcRect.bottom - srcRect.top) / sampleSize == dstH) {
+            // Already the exact size. Decode straight into the pooled bitmap.
+            return decodeRegion(brd, srcRect);
+        }
+
+        // The sampled region is larger than the destination, or smaller if the source is.
+        final Bitmap inBitmap = mOpts.inBitmap;
+        mOpts.inBitmap = null;
+        final Bitmap decoded;
+        try {
+            decoded = decodeRegion(brd, srcRect);
+        } finally {
+            mOpts.inBitmap = inBitmap;
+        }
+        if (decoded == null) {
+            return null;
+        }
+
+        Trace.beginSection("resample");
+        try {
+            if (mInBitmap != null) {
+                mInBitmap.bmp.eraseColor(Color.TRANSPARENT);
+                final Canvas canvas = new Canvas(mInBitmap.bmp);
+                canvas.drawBitmap(decoded, null, new Rect(0, 0, dstW, dstH), sResamplePaint);
+                decoded.recycle();
+                return mInBitmap.bmp;
+            }
+            final Bitmap scaled = Bitmap.createScaledBitmap(decoded, dstW, dstH,
+                    true /* filter */);
+            if (scaled != decoded) {
+                decoded.recycle();
+            }
+            return scaled;
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Make the Exif orientation and the bounds of the source known ahead of the decode, without
+     * decoding any pixels, so that the decode can be admitted at its real cost and a later
+     * {@link #decode()} can skip straight to the pixel decode. They are taken from the metadata
+     * cache if it has them, or else read from a source of their own and put in the cache.
+     * <p/>
+     * This uses its own source and options, so it may run concurrently with {@link #decode()}.
+     *
+     * @return true if the metadata is known.
+     */
+    boolean loadMetadata() {
+        if (mMetadata != null) {
+            return true;
+        }
+        final MetadataCache metadataCache = mDecodeOpts.metadataCache;
+        if (metadataCache != null) {
+            final MetadataCache.Metadata cached = new MetadataCache.Metadata();
+            if (metadataCache.get(mKey, cached)) {
+                mMetadata = cached;
+                return true;
+            }
+        }
+        if (mSourceStream != null || isCancelled()) {
+            // The source stream can only be read once, by the decode itself.
+            return false;
+        }
+
+        Trace.beginSection("prefetch metadata");
+        ParcelFileDescriptor fd = null;
+        InputStream in = null;
+        try {
+            final BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            final long byteSize;
+            int exifOrientation = Exif.ORIENTATION_NORMAL;
+            if (mFactory != null) {
+                fd = mFactory.createFileDescriptor();
+                if (fd == null) {
+                    return false;
+                }
+                byteSize = fd.getStatSize();
+                if (mKey.hasOrientationExif()) {
+                    exifOrientation = getExifOrientation(fd, byteSize);
+                }
+                BitmapFactory.decodeFileDescriptor(fd.getFileDescriptor(), null, opts);
+            } else {
+                byteSize = -1;
+                in = reset(null);
+                if (in == null) {
+                    return false;
+                }
+                if (mKey.hasOrientationExif()) {
+                    exifOrientation = Exif.getExifOrientation(in, byteSize);
+                    in = reset(in);
+                    if (in == null) {
+                        return false;
+                    }
+                }
+                BitmapFactory.decodeStream(in, null, opts);
+            }
+            if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+                return false;
+            }
+            final MetadataCache.Metadata metadata = new MetadataCache.Metadata();
+            metadata.width = opts.outWidth;
+            metadata.height = opts.outHeight;
+            metadata.exifOrientation = exifOrientation;
+            metadata.mimeType = opts.outMimeType;
+            metadata.byteSize = byteSize;
+            mMetadata = metadata;
+            if (metadataCache != null) {
+                metadataCache.put(mKey, opts.outWidth, opts.outHeight, exifOrientation,
+                        opts.outMimeType, byteSize);
+            }
+            if (DEBUG) {
+                Log.d(TAG, "prefetched metadata: key=" + mKey + " " + opts.outWidth + "x"
+                        + opts.outHeight);
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (fd != null) {
+                try {
+                    fd.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * @return The cost to admit the decode at, from the source bounds and the sample size the
+     * decode will choose, or -1 if the metadata of the source cannot be known ahead of the
+     * decode. May read the metadata, see {@link #loadMetadata()}.
+     */
+    long estimateAdmissionBytes() {
+        if (!loadMetadata()) {
+            return -1;
+        }
+        final MetadataCache.Metadata metadata = mMetadata;
+        final boolean isNotRotatedOr180 = Exif.getRotation(metadata.exifOrientation) % 180 == 0;
+        final int srcW = isNotRotatedOr180 ? metadata.width : metadata.height;
+        final int srcH = isNotRotatedOr180 ? metadata.height : metadata.width;
+        return DecodeMemoryLimiter.estimateBytes(metadata.width, metadata.height,
+                calculateSampleSize(srcW, srcH), mOpts.inPreferredConfig);
+    }
+
+    /**
+     * Make sure that at least the given cost is admitted by mDecodeOpts.memoryLimiter, waiting on
+     * the calling thread if needed. A smaller cost admitted before is given back first, so that
+     * decoders waiting to grow never hold memory back from each other.
+     *
+     * @return false if the decoder was cancelled while waiting.
+     */
+    private boolean admit(final long bytes) {
+        final DecodeMemoryLimiter limiter = mDecodeOpts.memoryLimiter;
+        if (limiter == null || bytes <= mAdmittedBytes) {
+            return true;
+        }
+        if (mAdmittedBytes > 0) {
+            limiter.release(mAdmittedBytes);
+            mAdmittedBytes = 0;
+        }
+        if (!limiter.acquire(bytes, this)) {
+            return false;
+        }
+        mAdmittedBytes = bytes;
+        return true;
+    }
+
+    /**
+     * @param srcW The source width, orientation corrected.
+     * @param srcH The source height, orientation corrected.
+     * @return The sample size to decode at, for the sample size strategy of the decode options.
+     */
+    private int calculateSampleSize(final int srcW, final int srcH) {
+        final float sz = Math
+                .min((float) srcW / mDecodeOpts.destW, (float) srcH / mDecodeOpts.destH);
+
+        final int sampleSize;
+        switch (mDecodeOpts.sampleSizeStrategy) {
+            case DecodeOptions.STRATEGY_TRUNCATE:
+                sampleSize = (int) sz;
+                break;
+            case DecodeOptions.STRATEGY_ROUND_UP:
+                sampleSize = (int) Math.ceil(sz);
+                break;
+            case DecodeOptions.STRATEGY_EXACT:
+                // The decoders only sample by powers of 2. Resampling makes up the rest.
+                sampleSize = Integer.highestOneBit((int) sz);
+                break;
+            case DecodeOptions.STRATEGY_ROUND_NEAREST:
+            default:
+                sampleSize = (int) Math.pow(2, (int) (0.5 + (Math.log(sz) / Math.log(2))));
+                break;
+        }
+        return Math.max(1, sampleSize);
+    }
+
+    /**
+     * The single exit path of {@link #decode()}, whether it succeeded, failed or was cancelled.
+     * Closes the source, places the outcome in the cache and makes sure that a bitmap taken from
+     * the pool is either the result or offered back to the pool.
+     */
+    private void cleanup(ParcelFileDescriptor fd, InputStream in, Bitmap decodeResult,
+            ReusableBitmap result) {
+        mEndNanos = System.nanoTime();
+        if (mAdmittedBytes > 0) {
+            mDecodeOpts.memoryLimiter.release(mAdmittedBytes);
+            mAdmittedBytes = 0;
+        }
+        if (fd != null) {
+            try {
+                fd.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+        closeSourceStream();
+
+        if (result != null) {
+            // Put result in cache, even if we were cancelled since. The caller releases it.
+            mCache.put(mKey, result);
+            result.acquireReference();
+            if (DEBUG) {
+                Log.d(TAG, "placed result in cache: key=" + mKey + " bmp="
+                    + result + " cancelled=" + isCancelled());
+            }
+            return;
+        }
+
+        final boolean cancelled = isCancelled();
+        if (!cancelled) {
+            // A failed decode. The cache will handle null results.
+            mCache.put(mKey, null);
+        }
+        if (decodeResult != null && (mInBitmap == null || decodeResult != mInBitmap.bmp)) {
+            // A cancelled decode into a bitmap of its own. Nobody else can see it.
+            decodeResult.recycle();
+        }
+        if (mInBitmap != null) {
+            if (DEBUG) {
+                Log.d(TAG, "placing failed/cancelled bitmap in pool: key="
+                    + mKey + " bmp=" + mInBitmap);
+            }
+            releaseInBitmap();
+            if (cancelled) {
+                sCancellationStats.recordPoolReturn();
+            }
+        }
+        if (cancelled) {
+            sCancellationStats.record(mPhase, System.nanoTime() - mStartNanos);
+        }
+    }
+
+    /**
+     * Give this decoder a bitmap that was already taken from the pool, so that {@link #decode()}
+     * does not need to poll the cache. Must be called before the decode begins. If the decode
+     * never runs, {@link #cancelBeforeStart()} offers the bitmap back to the pool.
+     */
+    void setInBitmap(ReusableBitmap inBitmap) {
+        mInBitmap = inBitmap;
+        mPolled = true;
+    }
+
+    /**
+     * @return true if {@link #decode()} would poll the pool for a reusable bitmap.
+     */
+    boolean needsInBitmap() {
+        // A progressive decode polls once it has read its source, so as not to hold a pooled
+        // bitmap meanwhile.
+        return android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN
+                && !mPolled && !(mDecodeOpts.progressive && mFactory == null);
+    }
+
+    /**
+     * @return true if {@link #decode()} would be admitted by mDecodeOpts.memoryLimiter before
+     * polling the pool. A progressive decode is admitted once it has read its source instead.
+     */
+    boolean needsAdmission() {
+        return mDecodeOpts.memoryLimiter != null && mAdmittedBytes == 0
+                && !(mDecodeOpts.progressive && mFactory == null);
+    }
+
+    /**
+     * Set the cost admitted by mDecodeOpts.memoryLimiter ahead of the decode. If the decode never
+     * runs, {@link #cancelBeforeStart()} releases it.
+     */
+    void setAdmittedBytes(long bytes) {
+        mAdmittedBytes = bytes;
+    }
+
+    BitmapCache getCache() {
+        return mCache;
+    }
+
+    DecodeOptions getDecodeOptions() {
+        return mDecodeOpts;
+    }
+
+    /**
+     * Called instead of {@link #decode()} when the decode is cancelled before it starts. Returns
+     * a bitmap given with {@link #setInBitmap(ReusableBitmap)} to the pool.
+     */
+    void cancelBeforeStart() {
+        cancel();
+        closeSourceStream();
+        if (mAdmittedBytes > 0) {
+            mDecodeOpts.memoryLimiter.release(mAdmittedBytes);
+            mAdmittedBytes = 0;
+        }
+        if (mInBitmap != null) {
+            releaseInBitmap();
+            sCancellationStats.recordPoolReturn();
+        }
+        sCancellationStats.record(CancellationStats.PHASE_QUEUED, 0);
+    }
+
+    /**
+     * Close the source stream, in case the decode did not get to take it over.
+     */
+    private void closeSourceStream() {
+        if (mSourceStream != null) {
+            try {
+                mSourceStream.close();
+            } catch (IOException ignored) {
+            }
+            mSourceStream = null;
+        }
+    }
+
+    /**
+     * Called when the decode finished but its result was discarded because of a late cancel.
+     */
+    void onResultDiscarded() {
+        sCancellationStats.record(CancellationStats.PHASE_DELIVER,
+                System.nanoTime() - mStartNanos);
+    }
+
+    /**
+     * Offer the bitmap taken from the pool back to it, and stop decoding into it.
+     */
+    private void releaseInBitmap() {
+        if (mInBitmap != null) {
+            mCache.offer(mInBitmap);
+            mInBitmap = null;
+            mOpts.inBitmap = null;
+        }
+    }
+
+    /**
+     * Return an input stream that can be read from the beginning using the most efficient way,
+     * given an input stream that may or may not support reset(), or given null.
+     *
+     * The returned input stream may or may not be the same stream.
+     */
+    private InputStream reset(InputStream in) throws IOException {
+        Trace.beginSection("create stream");
+        if (in == null) {
+            in = mKey.createInputStream();
+        } else if (in.markSupported()) {
+            in.reset();
+        } else {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+            in = mKey.createInputStream();
+        }
+        Trace.endSection();
+        return in;
+    }
+
+    /**
+     * Read the raw Exif orientation from the given file descriptor without consuming it. The
+     * descriptor's position is restored afterwards so that it can still be decoded from.
+     *
+     * If the descriptor is not seekable (e.g. a pipe), we fall back to reading the orientation
+     * from a second file descriptor created by the factory.
+     */
+    private int getExifOrientation(ParcelFileDescriptor fd, long byteSize) throws IOException {
+        Trace.beginSection("create orientation stream");
+        // This stream does not own the descriptor, so it must not be closed.
+        final FileInputStream in = new FileInputStream(fd.getFileDescriptor());
+        final FileChannel channel = in.getChannel();
+        long position;
+        try {
+            position = channel.position();
+        } catch (IOException e) {
+            position = -1;
+        }
+        Trace.endSection();
+
+        if (position >= 0) {
+            try {
+                return Exif.getExifOrientation(in, byteSize);
+            } finally {
+                channel.position(position);
+            }
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "fd not seekable, creating orientation fd: key=" + mKey);
+        }
+        Trace.beginSection("create orientation fd and stream");
+        final InputStream orientationIn =
+                new AutoCloseInputStream(mFactory.createFileDescriptor());
+        Trace.endSection();
+        try {
+            return Exif.getExifOrientation(orientationIn, byteSize);
+        } finally {
+            try {
+                // Close the temporary file descriptor.
+                orientationIn.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private Bitmap decode(ParcelFileDescriptor fd, InputStream in) {
+        final long startNanos = System.nanoTime();
+        final Bitmap result;
+        if (fd != null) {
+            result = BitmapFactory.decodeFileDescriptor(fd.getFileDescriptor(), null, mOpts);
+        } else {
+            result = BitmapFactory.decodeStream(in, null, mOpts);
+        }
+        onPixelsDecoded(startNanos, result);
+        return result;
+    }
+
+    private Bitmap decodeRegion(BitmapRegionDecoder brd, Rect srcRect) {
+        final long startNanos = System.nanoTime();
+        final Bitmap result = brd.decodeRegion(srcRect, mOpts);
+        onPixelsDecoded(startNanos, result);
+        return result;
+    }
+
+    /**
+     * Account for a decoder call that started at startNanos. A stream decode still reads the
+     * source as it goes, but the region decoder and the bounds passes have read it by now.
+     */
+    private void onPixelsDecoded(long startNanos, Bitmap result) {
+        mPixelDecodeNanos += System.nanoTime() - startNanos;
+        if (result != null) {
+            mDecodedPixels += (long) result.getWidth() * result.getHeight();
+        }
+    }
+
+    /**
+     * Receives the partial results of a progressive decode, on the decoding thread.
+     */
+    interface ProgressListener {
+
+        /**
+         * @param partial The bytes received so far, decoded into a bitmap of its own that is
+         *                neither pooled nor cached, and never decoded into again.
+         */
+        void onPartialDecode(ReusableBitmap partial);
+    }
+
+    /**
+     * Release the reference a cancelled decode holds on its result.
+     */
+    static void releaseCancelledResult(ReusableBitmap result) {
+        if (result == null) {
+            return;
+        }
+
+        result.releaseReference();
+        if (!result.isEligibleForPooling()) {
+            // not reusing bitmaps: can recycle immediately
+            result.bmp.recycle();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.android.bitmap.DecodeTask.DecodeCallback;
+import com.android.bitmap.util.Trace;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs {@link DecodeCallback} deliveries on the UI thread in batches, once per frame. Runnables
+ * may be submitted from any thread. They are queued and then drained in order in a single
+ * {@link Choreographer} frame callback, instead of posting one message per event to the main
+ * looper. Use it as the callback executor of a {@link DecodeEngine} or {@link DecodeTask}.
+ * <p/>
+ * Each frame only spends up to a time budget running deliveries. Deliveries left over when the
+ * budget runs out spill to the next frame, so that a burst of completions is spread out instead of
+ * causing a long frame. The number of deliveries per frame may also be capped. At least one
+ * delivery is run per frame.
+ * <p/>
+ * A FrameDispatcher must be created on the UI thread.
+ */
+public class FrameDispatcher implements Executor, Choreographer.FrameCallback {
+
+    /**
+     * A quarter of a frame at 60fps.
+     */
+    public static final long DEFAULT_FRAME_BUDGET_MS = 4;
+
+    private final Choreographer mChoreographer;
+    private final long mFrameBudgetNanos;
+    private final int mMaxEventsPerFrame;
+    private final Queue<Runnable> mEvents = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private static final String TAG = FrameDispatcher.class.getSimpleName();
+    private static final boolean DEBUG = DecodeTask.DEBUG;
+
+    public FrameDispatcher() {
+        this(DEFAULT_FRAME_BUDGET_MS);
+    }
+
+    /**
+     * @param frameBudgetMs The maximum time to spend delivering events in each frame.
+     */
+    public FrameDispatcher(final long frameBudgetMs) {
+        this(frameBudgetMs, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param frameBudgetMs     The maximum time to spend delivering events in each frame.
+     * @param maxEventsPerFrame The maximum number of events to deliver in each frame.
+     */
+    public FrameDispatcher(final long frameBudgetMs, final int maxEventsPerFrame) {
+        if (maxEventsPerFrame < 1) {
+            throw new IllegalArgumentException("maxEventsPerFrame must be at least 1");
+        }
+        mChoreographer = Choreographer.getInstance();
+        mFrameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(frameBudgetMs);
+        mMaxEventsPerFrame = maxEventsPerFrame;
+    }
+
+    /**
+     * Queue the given delivery for the next frame.
+     */
+    @Override
+    public void execute(final Runnable event) {
+        mEvents.offer(event);
+        schedule();
+    }
+
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            // Choreographer hops to its own looper if this is called from another thread.
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(final long frameTimeNanos) {
+        Trace.beginSection("dispatch frame");
+        // Clear the flag first so that events queued while we drain schedule the next frame.
+        mScheduled.set(false);
+        final long start = System.nanoTime();
+        int count = 0;
+        Runnable event;
+        while ((event = mEvents.poll()) != null) {
+            event.run();
+            count++;
+            if (count >= mMaxEventsPerFrame || System.nanoTime() - start >= mFrameBudgetNanos) {
+                break;
+            }
+        }
+        if (!mEvents.isEmpty()) {
+            // Over budget. The rest spills to the next frame.
+            schedule();
+        }
+        if (DEBUG) {
+            Log.d(TAG, "delivered " + count + " events in frame " + frameTimeNanos + ", "
+                    + mEvents.size() + " left");
+        }
+        Trace.endSection();
+    }
+}
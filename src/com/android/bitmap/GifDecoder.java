@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.android.bitmap.util.Trace;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A pure Java decoder for the frames of an animated GIF. The stream is scanned once up front to
+ * index its frames. Frames are then decompressed (LZW) and composited one at a time, in order,
+ * into an ARGB canvas that honors each frame's disposal method and transparency.
+ * <p/>
+ * Compositing is sequential because a frame may only draw the part of the image that changed
+ * since the previous one. To skip frames, {@link #advance()} through them and only
+ * {@link #writeTo(Bitmap)} the last one.
+ * <p/>
+ * This class is not thread safe. Use each instance from one thread at a time.
+ */
+public class GifDecoder {
+
+    public static final int DISPOSAL_UNSPECIFIED = 0;
+    public static final int DISPOSAL_NONE = 1;
+    public static final int DISPOSAL_BACKGROUND = 2;
+    public static final int DISPOSAL_PREVIOUS = 3;
+
+    /**
+     * Loop forever, for {@link #getLoopCount()}.
+     */
+    public static final int LOOP_FOREVER = 0;
+
+    /**
+     * The largest logical screen to decode, in pixels. The canvas, the saved canvas and every
+     * frame bitmap of a player each take 4 bytes per pixel, and none of them are sampled down.
+     */
+    public static final int MAX_PIXELS = 1024 * 1024;
+
+    /**
+     * Like browsers, treat very short frame delays as the default delay.
+     */
+    private static final int MIN_DELAY_MS = 20;
+    private static final int DEFAULT_DELAY_MS = 100;
+
+    private static final int MAX_CODES = 4096;
+
+    private static final int[] INTERLACE_START = new int[] { 0, 4, 2, 1 };
+    private static final int[] INTERLACE_STEP = new int[] { 8, 8, 4, 2 };
+
+    private final byte[] mData;
+    private int mPos;
+
+    private int mWidth;
+    private int mHeight;
+    private int mLoopCount = 1;
+    private final List<Frame> mFrames = new ArrayList<Frame>();
+
+    private int[] mCanvas;
+    private int[] mSaved;
+    private byte[] mIndices;
+    private int mFrameIndex = -1;
+
+    // LZW tables, reused across frames.
+    private final short[] mPrefix = new short[MAX_CODES];
+    private final byte[] mSuffix = new byte[MAX_CODES];
+    private final byte[] mPixelStack = new byte[MAX_CODES + 1];
+
+    private static final String TAG = GifDecoder.class.getSimpleName();
+    private static final boolean DEBUG = DecodeTask.DEBUG;
+
+    /**
+     * Index the frames of the given GIF.
+     *
+     * @throws IOException if the data is not a GIF, has no frame, is larger than
+     * {@link #MAX_PIXELS} or has a frame outside of its logical screen.
+     */
+    public GifDecoder(final byte[] data) throws IOException {
+        mData = data;
+        Trace.beginSection("gif parse");
+        try {
+            parse();
+        } finally {
+            Trace.endSection();
+        }
+        if (mFrames.isEmpty()) {
+            throw new IOException("GIF has no frames");
+        }
+        mCanvas = new int[mWidth * mHeight];
+    }
+
+    /**
+     * @return true if the data starts with a GIF signature.
+     */
+    public static boolean isGif(final byte[] data) {
+        return data != null && data.length >= 6 && data[0] == 'G' && data[1] == 'I'
+                && data[2] == 'F';
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFrameCount() {
+        return mFrames.size();
+    }
+
+    /**
+     * @return The number of times to play the animation, or {@link #LOOP_FOREVER}.
+     */
+    public int getLoopCount() {
+        return mLoopCount;
+    }
+
+    /**
+     * @return The index of the frame composited in the canvas, or -1 before the first
+     * {@link #advance()}.
+     */
+    public int getCurrentFrameIndex() {
+        return mFrameIndex;
+    }
+
+    /**
+     * @return How long to show the given frame, in milliseconds.
+     */
+    public int getFrameDelay(final int index) {
+        return mFrames.get(index).delayMs;
+    }
+
+    /**
+     * Composite the next frame, wrapping around to the first one after the last.
+     */
+    public void advance() {
+        Trace.beginSection("gif frame");
+        final int next = (mFrameIndex + 1) % mFrames.size();
+        if (next == 0) {
+            Arrays.fill(mCanvas, 0);
+        } else {
+            dispose(mFrames.get(mFrameIndex));
+        }
+        final Frame frame = mFrames.get(next);
+        if (frame.disposal == DISPOSAL_PREVIOUS) {
+            if (mSaved == null) {
+                mSaved = new int[mCanvas.length];
+            }
+            System.arraycopy(mCanvas, 0, mSaved, 0, mCanvas.length);
+        }
+        draw(frame);
+        mFrameIndex = next;
+        Trace.endSection();
+    }
+
+    /**
+     * Write the current canvas to the given bitmap, which must be mutable and at least as large
+     * as the GIF.
+     */
+    public void writeTo(final Bitmap bitmap) {
+        bitmap.setPixels(mCanvas, 0, mWidth, 0, 0, mWidth, mHeight);
+    }
+
+    private void dispose(final Frame frame) {
+        switch (frame.disposal) {
+            case DISPOSAL_BACKGROUND:
+                // Like browsers, restore to transparent rather than the background color.
+                final int right = Math.min(frame.x + frame.width, mWidth);
+                final int bottom = Math.min(frame.y + frame.height, mHeight);
+                for (int y = frame.y; y < bottom; y++) {
+                    Arrays.fill(mCanvas, y * mWidth + frame.x, y * mWidth + right, 0);
+                }
+                break;
+            case DISPOSAL_PREVIOUS:
+                if (mSaved != null) {
+                    System.arraycopy(mSaved, 0, mCanvas, 0, mCanvas.length);
+                }
+                break;
+        }
+    }
+
+    private void draw(final Frame frame) {
+        final int count = frame.width * frame.height;
+        if (mIndices == null || mIndices.length < count) {
+            mIndices = new byte[count];
+        }
+        decodeLzw(frame, mIndices, count);
+
+        final int[] colors = frame.colorTable;
+        if (colors == null) {
+            return;
+        }
+        int pass = 0;
+        int row = 0;
+        for (int i = 0; i < frame.height; i++) {
+            int line = i;
+            if (frame.interlaced) {
+                while (row >= frame.height && pass < 3) {
+                    pass++;
+                    row = INTERLACE_START[pass];
+                }
+                line = row;
+                row += INTERLACE_STEP[pass];
+            }
+            final int y = frame.y + line;
+            if (y >= mHeight) {
+                continue;
+            }
+            final int rowStart = y * mWidth;
+            final int right = Math.min(frame.width, mWidth - frame.x);
+            int index = i * frame.width;
+            for (int x = 0; x < right; x++, index++) {
+                final int colorIndex = mIndices[index] & 0xFF;
+                if (colorIndex != frame.transparentIndex && colorIndex < colors.length) {
+                    mCanvas[rowStart + frame.x + x] = colors[colorIndex];
+                }
+            }
+        }
+    }
+
+    /**
+     * Decompress the color indices of the given frame. A truncated stream leaves the remaining
+     * pixels transparent.
+     */
+    private void decodeLzw(final Frame frame, final byte[] out, final int count) {
+        final byte fill = (byte) (frame.transparentIndex >= 0 ? frame.transparentIndex : 0);
+        int pos = frame.dataOffset;
+        final int minCodeSize = readByte(pos++);
+        if (minCodeSize < 1 || minCodeSize > 11) {
+            Arrays.fill(out, 0, count, fill);
+            return;
+        }
+        final int clear = 1 << minCodeSize;
+        final int endOfInformation = clear + 1;
+        int available = clear + 2;
+        int codeSize = minCodeSize + 1;
+        int codeMask = (1 << codeSize) - 1;
+        int oldCode = -1;
+        int first = 0;
+        for (int code = 0; code < clear; code++) {
+            mPrefix[code] = 0;
+            mSuffix[code] = (byte) code;
+        }
+
+        int blockRemaining = 0;
+        int bits = 0;
+        int datum = 0;
+        int top = 0;
+        int written = 0;
+        while (written < count) {
+            if (top == 0) {
+                // Read the next code.
+                while (bits < codeSize) {
+                    if (blockRemaining == 0) {
+                        blockRemaining = readByte(pos++);
+                        if (blockRemaining <= 0) {
+                            Arrays.fill(out, written, count, fill);
+                            return;
+                        }
+                    }
+                    final int b = readByte(pos++);
+                    if (b < 0) {
+                        Arrays.fill(out, written, count, fill);
+                        return;
+                    }
+                    datum |= b << bits;
+                    bits += 8;
+                    blockRemaining--;
+                }
+                int code = datum & codeMask;
+                datum >>= codeSize;
+                bits -= codeSize;
+
+                if (code == clear) {
+                    codeSize = minCodeSize + 1;
+                    codeMask = (1 << codeSize) - 1;
+                    available = clear + 2;
+                    oldCode = -1;
+                    continue;
+                }
+                if (code == endOfInformation || code > available) {
+                    break;
+                }
+                if (oldCode == -1) {
+                    mPixelStack[top++] = mSuffix[code];
+                    oldCode = code;
+                    first = code;
+                    continue;
+                }
+                final int inCode = code;
+                if (code == available) {
+                    mPixelStack[top++] = (byte) first;
+                    code = oldCode;
+                }
+                while (code >= clear) {
+                    mPixelStack[top++] = mSuffix[code];
+                    code = mPrefix[code];
+                }
+                first = mSuffix[code] & 0xFF;
+                mPixelStack[top++] = (byte) first;
+                if (available < MAX_CODES) {
+                    mPrefix[available] = (short) oldCode;
+                    mSuffix[available] = (byte) first;
+                    available++;
+                    if ((available & codeMask) == 0 && available < MAX_CODES) {
+                        codeSize++;
+                        codeMask += available;
+                    }
+                }
+                oldCode = inCode;
+            }
+            // Pop a pixel off the stack.
+            top--;
+            out[written++] = mPixelStack[top];
+        }
+        if (written < count) {
+            Arrays.fill(out, written, count, fill);
+        }
+    }
+
+    private int readByte(final int pos) {
+        return pos < mData.length ? mData[pos] & 0xFF : -1;
+    }
+
+    private int readByte() {
+        return readByte(mPos++);
+    }
+
+    private int readShort() {
+        final int low = readByte();
+        final int high = readByte();
+        return (high << 8) | low;
+    }
+
+    private void parse() throws IOException {
+        if (!isGif(mData)) {
+            throw new IOException("Not a GIF");
+        }
+        mPos = 6;
+        mWidth = readShort();
+        mHeight = readShort();
+        final int packed = readByte();
+        readByte(); // background color index
+        readByte(); // pixel aspect ratio
+        if (mWidth <= 0 || mHeight <= 0) {
+            throw new IOException("Invalid GIF dimensions");
+        }
+        if ((long) mWidth * mHeight > MAX_PIXELS) {
+            throw new IOException("GIF too large: " + mWidth + "x" + mHeight);
+        }
+        int[] globalColorTable = null;
+        if ((packed & 0x80) != 0) {
+            globalColorTable = readColorTable(2 << (packed & 7));
+        }
+
+        int disposal = DISPOSAL_UNSPECIFIED;
+        int delayMs = 0;
+        int transparentIndex = -1;
+        boolean sawLoopCount = false;
+        while (mPos < mData.length) {
+            final int block = readByte();
+            if (block == 0x2C) {
+                // Image descriptor.
+                final Frame frame = new Frame();
+                frame.x = readShort();
+                frame.y = readShort();
+                frame.width = readShort();
+                frame.height = readShort();
+                final int imagePacked = readByte();
+                frame.interlaced = (imagePacked & 0x40) != 0;
+                frame.colorTable = (imagePacked & 0x80) != 0
+                        ? readColorTable(2 << (imagePacked & 7)) : globalColorTable;
+                frame.disposal = disposal;
+                frame.delayMs = delayMs < MIN_DELAY_MS ? DEFAULT_DELAY_MS : delayMs;
+                frame.transparentIndex = transparentIndex;
+                frame.dataOffset = mPos;
+                mPos++; // LZW minimum code size
+                skipSubBlocks();
+                if (mPos > mData.length) {
+                    // Truncated. Keep the frame; its missing pixels decode as transparent.
+                    if (DEBUG) {
+                        Log.d(TAG, "truncated GIF, keeping " + (mFrames.size() + 1) + " frames");
+                    }
+                }
+                if (frame.x + frame.width > mWidth || frame.y + frame.height > mHeight) {
+                    throw new IOException("GIF frame outside of the logical screen: "
+                            + frame.width + "x" + frame.height + "+" + frame.x + "+" + frame.y);
+                }
+                if (frame.width > 0 && frame.height > 0) {
+                    mFrames.add(frame);
+                }
+                disposal = DISPOSAL_UNSPECIFIED;
+                delayMs = 0;
+                transparentIndex = -1;
+            } else if (block == 0x21) {
+                // Extension.
+                final int label = readByte();
+                if (label == 0xF9) {
+                    // Graphic control extension.
+                    readByte(); // block size, always 4
+                    final int controlPacked = readByte();
+                    disposal = (controlPacked >> 2) & 7;
+                    delayMs = readShort() * 10;
+                    final int index = readByte();
+                    transparentIndex = (controlPacked & 1) != 0 ? index : -1;
+                    skipSubBlocks();
+                } else if (label == 0xFF && !sawLoopCount) {
+                    // Application extension. Look for the NETSCAPE2.0 loop count.
+                    final int size = readByte();
+                    final String id = size == 11 && mPos + 11 <= mData.length
+                            ? new String(mData, mPos, 8, "US-ASCII") : null;
+                    mPos += size;
+                    if ("NETSCAPE".equals(id) && readByte(mPos) == 3 && readByte(mPos + 1) == 1) {
+                        mPos += 2;
+                        mLoopCount = readShort();
+                        sawLoopCount = true;
+                    }
+                    skipSubBlocks();
+                } else {
+                    skipSubBlocks();
+                }
+            } else {
+                // Trailer (0x3B), or garbage: stop.
+                break;
+            }
+        }
+    }
+
+    private int[] readColorTable(final int size) {
+        final int[] table = new int[size];
+        for (int i = 0; i < size; i++) {
+            final int r = readByte() & 0xFF;
+            final int g = readByte() & 0xFF;
+            final int b = readByte() & 0xFF;
+            table[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+        return table;
+    }
+
+    private void skipSubBlocks() {
+        int size;
+        while ((size = readByte()) > 0) {
+            mPos += size;
+        }
+    }
+
+    private static class Frame {
+        int x;
+        int y;
+        int width;
+        int height;
+        boolean interlaced;
+        int[] colorTable;
+        int disposal;
+        int delayMs;
+        int transparentIndex;
+        int dataOffset;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.bitmap.util.Exif;
+import com.android.bitmap.util.Trace;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of image metadata (dimensions, Exif orientation, mime type and byte size) per
+ * {@link RequestKey}. {@link DecodeTask} consults this cache to skip the Exif parse and the
+ * bounds decode when it has seen the same source before, e.g. at another decode size.
+ * <p/>
+ * Each entry is packed into two longs to keep the footprint small:
+ * <ul>
+ * <li>width (high 32 bits) and height (low 32 bits)</li>
+ * <li>byte size + 1 (high 56 bits), mime type index (4 bits) and Exif orientation (4 bits)</li>
+ * </ul>
+ * <p/>
+ * If a {@link KeyFormatter} is given, entries are stored under the formatted keys and can be
+ * written to and read from disk with {@link #writeTo(OutputStream)} and
+ * {@link #readFrom(InputStream)}, so that they survive process restarts.
+ * <p/>
+ * This class is thread safe.
+ */
+public class MetadataCache {
+
+    private static final String[] MIME_TYPES = new String[] {
+            null, "image/jpeg", "image/png", "image/gif", "image/webp", "image/bmp",
+            "image/x-ico", "image/vnd.wap.wbmp"
+    };
+
+    private static final int FILE_VERSION = 1;
+
+    private static final String TAG = MetadataCache.class.getSimpleName();
+    private static final boolean DEBUG = DecodeTask.DEBUG;
+
+    private final LruCache<Object, long[]> mEntries;
+    private final KeyFormatter mFormatter;
+
+    /**
+     * Create an in-memory cache.
+     * @param capacity The maximum number of entries.
+     */
+    public MetadataCache(final int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Create a cache that can be persisted.
+     * @param capacity  The maximum number of entries.
+     * @param formatter Converts request keys to stable strings, or null if the cache does not
+     *                  need to be persisted.
+     */
+    public MetadataCache(final int capacity, final KeyFormatter formatter) {
+        mEntries = new LruCache<Object, long[]>(capacity);
+        mFormatter = formatter;
+    }
+
+    /**
+     * Look up the metadata for the given key.
+     * @param key The request key.
+     * @param out The metadata to fill in. Unchanged if there is no entry.
+     * @return true if an entry was found.
+     */
+    public boolean get(final RequestKey key, final Metadata out) {
+        final Object cacheKey = toCacheKey(key);
+        if (cacheKey == null) {
+            return false;
+        }
+        final long[] packed = mEntries.get(cacheKey);
+        if (packed == null) {
+            return false;
+        }
+        out.width = (int) (packed[0] >>> 32);
+        out.height = (int) packed[0];
+        out.byteSize = (packed[1] >>> 8) - 1;
+        out.mimeType = MIME_TYPES[(int) (packed[1] >>> 4) & 0xF];
+        out.exifOrientation = (int) packed[1] & 0xF;
+        return true;
+    }
+
+    /**
+     * Remember the metadata for the given key.
+     * @param key             The request key.
+     * @param width           The source width, before orientation correction.
+     * @param height          The source height, before orientation correction.
+     * @param exifOrientation One of the {@link Exif} ORIENTATION constants.
+     * @param mimeType        The source mime type, or null if unknown.
+     * @param byteSize        The source byte size, or -1 if unknown.
+     */
+    public void put(final RequestKey key, final int width, final int height,
+            final int exifOrientation, final String mimeType, final long byteSize) {
+        final Object cacheKey = toCacheKey(key);
+        if (cacheKey == null || width <= 0 || height <= 0
+                || !isValidOrientation(exifOrientation)) {
+            return;
+        }
+        final long[] packed = new long[2];
+        packed[0] = ((long) width << 32) | (height & 0xFFFFFFFFL);
+        packed[1] = ((Math.max(byteSize, -1) + 1) << 8) | (indexOf(mimeType) << 4)
+                | (exifOrientation & 0xF);
+        mEntries.put(cacheKey, packed);
+    }
+
+    public void remove(final RequestKey key) {
+        final Object cacheKey = toCacheKey(key);
+        if (cacheKey != null) {
+            mEntries.remove(cacheKey);
+        }
+    }
+
+    public void clear() {
+        mEntries.evictAll();
+    }
+
+    /**
+     * Write all entries to the given stream. Only supported if this cache was created with a
+     * {@link KeyFormatter}. The stream will not be closed for you.
+     */
+    public void writeTo(final OutputStream outputStream) throws IOException {
+        if (mFormatter == null) {
+            throw new IllegalStateException("MetadataCache: a KeyFormatter is required to persist");
+        }
+        Trace.beginSection("metadata write");
+        try {
+            final Map<Object, long[]> snapshot = mEntries.snapshot();
+            final DataOutputStream out = new DataOutputStream(outputStream);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(snapshot.size());
+            // The snapshot is ordered from least to most recently used, so reading it back in
+            // order preserves the recency.
+            for (Map.Entry<Object, long[]> entry : snapshot.entrySet()) {
+                out.writeUTF((String) entry.getKey());
+                out.writeLong(entry.getValue()[0]);
+                out.writeLong(entry.getValue()[1]);
+            }
+            out.flush();
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Read entries previously written with {@link #writeTo(OutputStream)}. Only supported if this
+     * cache was created with a {@link KeyFormatter}. The stream will not be closed for you.
+     * <p/>
+     * Entries are only added once the whole stream has been read and validated, so a truncated
+     * or corrupt stream adds none of them.
+     *
+     * @throws IOException if the stream could not be read or is corrupt.
+     */
+    public void readFrom(final InputStream inputStream) throws IOException {
+        if (mFormatter == null) {
+            throw new IllegalStateException("MetadataCache: a KeyFormatter is required to persist");
+        }
+        Trace.beginSection("metadata read");
+        try {
+            final DataInputStream in = new DataInputStream(inputStream);
+            final int version = in.readInt();
+            if (version != FILE_VERSION) {
+                if (DEBUG) {
+                    Log.d(TAG, "ignoring metadata of unknown version " + version);
+                }
+                return;
+            }
+            final int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("corrupt metadata: count=" + count);
+            }
+            final LinkedHashMap<String, long[]> entries = new LinkedHashMap<String, long[]>();
+            for (int i = 0; i < count; i++) {
+                final String cacheKey = in.readUTF();
+                final long[] packed = new long[] { in.readLong(), in.readLong() };
+                if (!isValid(packed)) {
+                    throw new IOException("corrupt metadata entry: key=" + cacheKey);
+                }
+                entries.put(cacheKey, packed);
+            }
+            for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+                mEntries.put(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * @return true if the packed entry holds values that {@link #put} could have written.
+     */
+    private static boolean isValid(final long[] packed) {
+        final int width = (int) (packed[0] >>> 32);
+        final int height = (int) packed[0];
+        final int mimeIndex = (int) (packed[1] >>> 4) & 0xF;
+        final int exifOrientation = (int) packed[1] & 0xF;
+        return width > 0 && height > 0 && mimeIndex < MIME_TYPES.length
+                && isValidOrientation(exifOrientation);
+    }
+
+    private static boolean isValidOrientation(final int exifOrientation) {
+        return exifOrientation >= Exif.ORIENTATION_NORMAL
+                && exifOrientation <= Exif.ORIENTATION_ROTATE_270;
+    }
+
+    private Object toCacheKey(final RequestKey key) {
+        if (key == null) {
+            return null;
+        }
+        if (mFormatter == null) {
+            return key;
+        }
+        return mFormatter.format(key);
+    }
+
+    private static long indexOf(final String mimeType) {
+        if (mimeType == null) {
+            return 0;
+        }
+        for (int i = 1; i < MIME_TYPES.length; i++) {
+            if (MIME_TYPES[i].equals(mimeType)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Converts request keys to stable strings, so that entries can be persisted.
+     */
+    public interface KeyFormatter {
+
+        /**
+         * @return A string that uniquely and stably identifies the source of the key, or null if
+         * the key should not be cached.
+         */
+        String format(RequestKey key);
+    }
+
+    /**
+     * Unpacked metadata for a single source.
+     */
+    public static class Metadata {
+        /**
+         * The source width, before orientation correction.
+         */
+        public int width;
+        /**
+         * The source height, before orientation correction.
+         */
+        public int height;
+        /**
+         * One of the {@link Exif} ORIENTATION constants.
+         */
+        public int exifOrientation;
+        /**
+         * The source mime type, or null if unknown.
+         */
+        public String mimeType;
+        /**
+         * The source byte size, or -1 if unknown.
+         */
+        public long byteSize;
+    }
+}
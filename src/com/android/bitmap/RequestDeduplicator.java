@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.bitmap.DecodeTask.DecodeCallback;
+import com.android.bitmap.DecodeTask.ProgressiveDecodeCallback;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Makes equivalent requests share one cache entry and one in-flight decode.
+ * <p>
+ * {@link #canonicalize(RequestKey)} maps a key to its canonical key with a pluggable
+ * {@link RequestKeyCanonicalizer}, and interns the result, so that equivalent keys resolve to the
+ * same instance. Share one deduplicator between the drawables, with
+ * {@link com.android.bitmap.drawable.BasicBitmapDrawable#setRequestDeduplicator}, and the cache,
+ * with {@link UnrefedBitmapCache#setRequestDeduplicator(RequestDeduplicator)}.
+ * <p>
+ * {@link #decode(RequestKey, int, int, DecodeCallback, TaskFactory)} starts a decode, or joins
+ * the decode of the same key already in flight if it decodes to dimensions at least as large as
+ * the requested ones. A request for larger dimensions starts a decode of its own instead of
+ * silently receiving a lower resolution result. Every subscriber of a shared decode receives the
+ * callbacks of the one decode, and its own reference to the result. The decode is cancelled once
+ * every subscriber has cancelled.
+ * <p>
+ * Partial results of progressive decodes are standalone bitmaps, never taken from the pool, so
+ * they are replayed to late subscribers as is.
+ * <p>
+ * {@link #canonicalize(RequestKey)} can be called from any thread. The other methods, and the
+ * callbacks of the decodes, must run on the UI thread.
+ */
+public class RequestDeduplicator {
+
+    /**
+     * Creates the decode task of a shared decode.
+     */
+    public interface TaskFactory {
+        /**
+         * @param callback The callback to give the task, which notifies every subscriber.
+         * @return The task, not yet executed.
+         */
+        DecodeTask createTask(DecodeCallback callback);
+    }
+
+    private final RequestKeyCanonicalizer mCanonicalizer;
+    private final LruCache<RequestKey, RequestKey> mInterned;
+    private final HashMap<RequestKey, SharedDecode> mInFlight =
+            new HashMap<RequestKey, SharedDecode>();
+
+    private static final String TAG = RequestDeduplicator.class.getSimpleName();
+    private static final boolean DEBUG = DecodeTask.DEBUG;
+
+    /**
+     * @param canonicalizer  The canonicalizer.
+     * @param internCapacity The number of canonical keys to intern.
+     */
+    public RequestDeduplicator(final RequestKeyCanonicalizer canonicalizer,
+            final int internCapacity) {
+        mCanonicalizer = canonicalizer;
+        mInterned = new LruCache<RequestKey, RequestKey>(internCapacity);
+    }
+
+    /**
+     * @return The interned canonical key for the given key, or null for null.
+     */
+    public RequestKey canonicalize(final RequestKey key) {
+        if (key == null) {
+            return null;
+        }
+        final RequestKey canonical = mCanonicalizer.canonicalize(key);
+        final RequestKey interned = mInterned.get(canonical);
+        if (interned != null) {
+            return interned;
+        }
+        mInterned.put(canonical, canonical);
+        return canonical;
+    }
+
+    /**
+     * Join the decode of the given key, if one is in flight at dimensions at least as large as
+     * the given ones. The callback is notified right away of the begin and of the latest partial
+     * result it missed.
+     *
+     * @param destW The width the caller would decode to.
+     * @param destH The height the caller would decode to.
+     * @return The subscription, or null if no such decode is in flight.
+     */
+    public Subscription join(final RequestKey key, final int destW, final int destH,
+            final DecodeCallback callback) {
+        final SharedDecode shared = mInFlight.get(key);
+        if (shared == null) {
+            return null;
+        }
+        if (destW > shared.mDestW || destH > shared.mDestH) {
+            if (DEBUG) {
+                Log.d(TAG, String.format("not joining smaller decode of key=%s", key));
+            }
+            return null;
+        }
+        if (DEBUG) {
+            Log.d(TAG, String.format("joining decode of key=%s", key));
+        }
+        return shared.subscribe(callback);
+    }
+
+    /**
+     * Join the decode of the given key if one is in flight at dimensions at least as large as
+     * the given ones, or else start one with a task from the given factory. The new decode then
+     * replaces any smaller one for later joins.
+     *
+     * @param destW The width the task decodes to.
+     * @param destH The height the task decodes to.
+     * @return The subscription.
+     */
+    public Subscription decode(final RequestKey key, final int destW, final int destH,
+            final DecodeCallback callback, final TaskFactory factory) {
+        final Subscription joined = join(key, destW, destH, callback);
+        if (joined != null) {
+            return joined;
+        }
+        final SharedDecode shared = new SharedDecode(key, destW, destH);
+        mInFlight.put(key, shared);
+        final Subscription subscription = shared.subscribe(callback);
+        shared.mTask = factory.createTask(shared);
+        return subscription;
+    }
+
+    /**
+     * A subscriber of a shared decode.
+     */
+    public static class Subscription {
+        private final SharedDecode mShared;
+        private final DecodeCallback mCallback;
+
+        private Subscription(final SharedDecode shared, final DecodeCallback callback) {
+            mShared = shared;
+            mCallback = callback;
+        }
+
+        /**
+         * @return The decode task, shared by every subscriber. Do not cancel it directly.
+         */
+        public DecodeTask getTask() {
+            return mShared.mTask;
+        }
+
+        /**
+         * Stop receiving the callbacks of the decode. The decode is cancelled once no subscriber
+         * is left.
+         */
+        public void cancel() {
+            mShared.unsubscribe(mCallback);
+        }
+    }
+
+    private class SharedDecode implements ProgressiveDecodeCallback {
+        private final RequestKey mKey;
+        private final int mDestW;
+        private final int mDestH;
+        private final List<DecodeCallback> mCallbacks = new ArrayList<DecodeCallback>(1);
+        private DecodeTask mTask;
+        private boolean mBegun;
+        private ReusableBitmap mPartial;
+        private boolean mDone;
+
+        SharedDecode(final RequestKey key, final int destW, final int destH) {
+            mKey = key;
+            mDestW = destW;
+            mDestH = destH;
+        }
+
+        Subscription subscribe(final DecodeCallback callback) {
+            mCallbacks.add(callback);
+            if (mBegun) {
+                callback.onDecodeBegin(mKey);
+            }
+            if (mPartial != null && callback instanceof ProgressiveDecodeCallback) {
+                ((ProgressiveDecodeCallback) callback).onDecodePartial(mKey, mPartial);
+            }
+            return new Subscription(this, callback);
+        }
+
+        void unsubscribe(final DecodeCallback callback) {
+            if (!mCallbacks.remove(callback) || !mCallbacks.isEmpty() || mDone) {
+                return;
+            }
+            finish();
+            mTask.cancel();
+        }
+
+        private void finish() {
+            mDone = true;
+            mPartial = null;
+            if (mInFlight.get(mKey) == this) {
+                mInFlight.remove(mKey);
+            }
+        }
+
+        @Override
+        public void onDecodeBegin(final RequestKey key) {
+            mBegun = true;
+            for (DecodeCallback callback : new ArrayList<DecodeCallback>(mCallbacks)) {
+                callback.onDecodeBegin(key);
+            }
+        }
+
+        @Override
+        public void onDecodeComplete(final RequestKey key, final ReusableBitmap result) {
+            finish();
+            final List<DecodeCallback> callbacks = new ArrayList<DecodeCallback>(mCallbacks);
+            mCallbacks.clear();
+            if (result == null) {
+                for (DecodeCallback callback : callbacks) {
+                    callback.onDecodeComplete(key, null);
+                }
+                return;
+            }
+            // Give every subscriber its own reference, then drop the one of the decode.
+            for (DecodeCallback callback : callbacks) {
+                result.acquireReference();
+                callback.onDecodeComplete(key, result);
+            }
+            result.releaseReference();
+        }
+
+        @Override
+        public void onDecodePartial(final RequestKey key, final ReusableBitmap partial) {
+            mPartial = partial;
+            for (DecodeCallback callback : new ArrayList<DecodeCallback>(mCallbacks)) {
+                if (callback instanceof ProgressiveDecodeCallback) {
+                    ((ProgressiveDecodeCallback) callback).onDecodePartial(key, partial);
+                }
+            }
+        }
+
+        @Override
+        public void onDecodeCancel(final RequestKey key) {
+            finish();
+            final List<DecodeCallback> callbacks = new ArrayList<DecodeCallback>(mCallbacks);
+            mCallbacks.clear();
+            for (DecodeCallback callback : callbacks) {
+                callback.onDecodeCancel(key);
+            }
+        }
+    }
+}
@@ -26,7 +26,9 @@ import java.io.InputStream;
  * {@link #createFileDescriptorFactoryAsync(RequestKey, Callback)} or {@link #createInputStream()}.
  * {@link DecodeTask} will prioritize
  * {@link #createFileDescriptorFactoryAsync(RequestKey, Callback)} before falling back to
- * {@link #createInputStream()}.
+ * {@link #createInputStream()}. Keys whose input stream is slow to open, e.g. from the network or
+ * over IPC, may also implement {@link AsyncInputStreamSource}, which is tried before
+ * {@link #createInputStream()} so that the wait does not hold a decode thread.
  *
  * <p>
  * Clients of this interface must also implement {@link #equals(Object)} and {@link #hashCode()} as
@@ -126,6 +128,52 @@ public interface RequestKey {
         ParcelFileDescriptor createFileDescriptor();
     }
 
+    /**
+     * Optional interface for keys that can open their input stream asynchronously. The decode
+     * only starts once the stream has been delivered, and reads it from a decode thread.
+     */
+    public interface AsyncInputStreamSource {
+
+        /**
+         * Open an {@link InputStream} for the source off the UI thread and pass it to the given
+         * callback. This method is called if
+         * {@link RequestKey#createFileDescriptorFactoryAsync(RequestKey, Callback)} returns null;
+         * if it returns null too, {@link RequestKey#createInputStream()} will be called.
+         *
+         * The stream should be readable without long waits, e.g. over bytes already fetched, as
+         * it is read on a decode thread. It may not support mark and reset.
+         *
+         * This method must be called from the UI thread.
+         *
+         * @param key      The key to open an InputStream for. This key will be passed to the
+         *                 callback so it can check whether the key has changed.
+         * @param callback The callback to notify once the InputStream has been opened. Do not
+         *                 invoke the callback directly from this method. Instead, create a handler
+         *                 and post a Runnable.
+         *
+         * @return If the client will attempt to open an InputStream asynchronously, return a
+         * Cancelable object to cancel the asynchronous task. Otherwise return null. The callback
+         * must be notified if and only if the client returns a Cancelable object and not null.
+         */
+        Cancelable createInputStreamAsync(RequestKey key, InputStreamCallback callback);
+    }
+
+    /**
+     * Callback for opening the {@link InputStream} asynchronously.
+     */
+    public interface InputStreamCallback {
+
+        /**
+         * Notifies that the {@link InputStream} has been opened. This must be called on the UI
+         * thread.
+         * @param key    The key that the InputStream was opened for. The callback should check
+         *               that the key has not changed.
+         * @param stream The InputStream to decode from, owned by the callback, or null if it could
+         *               not be opened.
+         */
+        void inputStreamCreated(RequestKey key, InputStream stream);
+    }
+
     /**
      * Interface for a background task that is cancelable.
      */
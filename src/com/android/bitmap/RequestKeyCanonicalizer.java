@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+/**
+ * Maps request keys to canonical keys, so that logically identical requests built differently,
+ * e.g. URLs with query parameters in a different order, or a content URI and the path of the same
+ * file, are decoded and cached once. Used by {@link RequestDeduplicator}.
+ */
+public interface RequestKeyCanonicalizer {
+
+    /**
+     * Return the canonical key for the given key: a key that is equal to the canonical key of
+     * every equivalent key. It may be the given key itself.
+     * <p>
+     * Canonicalizing a canonical key must return an equal key. This method can be called from any
+     * thread.
+     */
+    RequestKey canonicalize(RequestKey key);
+}
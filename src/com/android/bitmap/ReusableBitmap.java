@@ -19,8 +19,9 @@ package com.android.bitmap;
 import android.graphics.Bitmap;
 
 /**
- * A simple bitmap wrapper. Currently supports reference counting and logical width/height
- * (which may differ from a bitmap's reported width/height due to bitmap reuse).
+ * A simple bitmap wrapper. Currently supports reference counting, logical width/height
+ * (which may differ from a bitmap's reported width/height due to bitmap reuse), and the
+ * orientation transform (rotation and horizontal flip) to apply when drawing.
  */
 public class ReusableBitmap implements Poolable {
 
@@ -28,6 +29,7 @@ public class ReusableBitmap implements Poolable {
     private int mWidth;
     private int mHeight;
     private int mOrientation;
+    private boolean mFlipped;
 
     private int mRefCount = 0;
     private final boolean mReusable;
@@ -70,6 +72,18 @@ public class ReusableBitmap implements Poolable {
         mOrientation = orientation;
     }
 
+    /**
+     * Whether the bitmap must be flipped horizontally after being rotated by
+     * {@link #getOrientation()} to be displayed upright.
+     */
+    public boolean isFlipped() {
+        return mFlipped;
+    }
+
+    public void setFlipped(final boolean flipped) {
+        mFlipped = flipped;
+    }
+
     public int getByteCount() {
         return bmp.getByteCount();
     }
@@ -106,6 +120,11 @@ public class ReusableBitmap implements Poolable {
         sb.append(mWidth);
         sb.append("/");
         sb.append(mHeight);
+        sb.append(" orientation=");
+        sb.append(mOrientation);
+        if (mFlipped) {
+            sb.append(" flipped");
+        }
         if (bmp != null) {
             sb.append(" sz=");
             sb.append(bmp.getByteCount() >> 10);
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import android.util.Log;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits the number of pixel decodes that run at once depending on the scroll state of a list:
+ * idle, touch scrolling or flinging. By default, pixel decodes are deferred entirely during a
+ * fling and unlimited otherwise. Use {@link #setMaxConcurrentDecodes(int, int)} to change that.
+ * <p/>
+ * A deferred decode gives up its thread. If its decode options have a {@link MetadataCache},
+ * the source's I/O and header work (Exif orientation and bounds) still runs right away on the
+ * decode thread, so that only the pixel decode is left when the decode resumes.
+ * <p/>
+ * Deferred decodes resume most recent first. During a fling, requests are made at the leading
+ * edge of the list and the requests for items that scrolled past are cancelled, so the most
+ * recent requests are those for the items visible once the list comes to rest.
+ * <p/>
+ * Set this as the list's {@link OnScrollListener}, or feed it scroll states with
+ * {@link #setScrollState(int)}, and give it to the drawables with
+ * {@link com.android.bitmap.drawable.BasicBitmapDrawable#setScrollThrottle(ScrollThrottle)}.
+ * <p/>
+ * This class is thread safe.
+ */
+public class ScrollThrottle implements OnScrollListener {
+
+    private static final int STATE_COUNT = 3;
+
+    private final Object mLock = new Object();
+    private final int[] mMaxConcurrentDecodes = new int[STATE_COUNT];
+    private final ArrayDeque<DecodeFuture> mDeferred = new ArrayDeque<DecodeFuture>();
+    private int mScrollState = SCROLL_STATE_IDLE;
+    private int mRunning;
+
+    private static final String TAG = ScrollThrottle.class.getSimpleName();
+    private static final boolean DEBUG = DecodeTask.DEBUG;
+
+    public ScrollThrottle() {
+        mMaxConcurrentDecodes[SCROLL_STATE_IDLE] = Integer.MAX_VALUE;
+        mMaxConcurrentDecodes[SCROLL_STATE_TOUCH_SCROLL] = Integer.MAX_VALUE;
+        mMaxConcurrentDecodes[SCROLL_STATE_FLING] = 0;
+    }
+
+    /**
+     * Set the maximum number of pixel decodes to run at once in the given scroll state.
+     *
+     * @param scrollState One of the {@link OnScrollListener} SCROLL_STATE constants.
+     * @param max         The maximum, or 0 to defer all pixel decodes.
+     */
+    public void setMaxConcurrentDecodes(final int scrollState, final int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("max must not be negative");
+        }
+        synchronized (mLock) {
+            mMaxConcurrentDecodes[scrollState] = max;
+        }
+        resumeDeferred();
+    }
+
+    @Override
+    public void onScrollStateChanged(final AbsListView view, final int scrollState) {
+        setScrollState(scrollState);
+    }
+
+    @Override
+    public void onScroll(final AbsListView view, final int firstVisibleItem,
+            final int visibleItemCount, final int totalItemCount) {
+    }
+
+    /**
+     * @param scrollState One of the {@link OnScrollListener} SCROLL_STATE constants.
+     */
+    public void setScrollState(final int scrollState) {
+        synchronized (mLock) {
+            if (DEBUG) {
+                Log.d(TAG, "scroll state " + mScrollState + " -> " + scrollState + " running="
+                        + mRunning + " deferred=" + mDeferred.size());
+            }
+            mScrollState = scrollState;
+        }
+        resumeDeferred();
+    }
+
+    public int getScrollState() {
+        synchronized (mLock) {
+            return mScrollState;
+        }
+    }
+
+    /**
+     * Ask to start a pixel decode.
+     *
+     * @return true if the decode may start now. It must then call {@link #release()} once done.
+     * false if it was deferred. It will be resumed with {@link DecodeFuture#resume()} holding a
+     * permit, or dropped with {@link #remove(DecodeFuture)} if cancelled.
+     */
+    boolean tryAcquire(final DecodeFuture future) {
+        synchronized (mLock) {
+            if (mRunning < mMaxConcurrentDecodes[mScrollState]) {
+                mRunning++;
+                return true;
+            }
+            mDeferred.addFirst(future);
+            return false;
+        }
+    }
+
+    /**
+     * Give back the permit of a pixel decode that finished or was cancelled.
+     */
+    void release() {
+        synchronized (mLock) {
+            mRunning--;
+        }
+        resumeDeferred();
+    }
+
+    /**
+     * Drop a deferred decode that was cancelled.
+     */
+    void remove(final DecodeFuture future) {
+        synchronized (mLock) {
+            mDeferred.remove(future);
+        }
+    }
+
+    private void resumeDeferred() {
+        List<DecodeFuture> resumed = null;
+        synchronized (mLock) {
+            final int max = mMaxConcurrentDecodes[mScrollState];
+            while (mRunning < max && !mDeferred.isEmpty()) {
+                if (resumed == null) {
+                    resumed = new ArrayList<DecodeFuture>();
+                }
+                resumed.add(mDeferred.pollFirst());
+                mRunning++;
+            }
+        }
+        if (resumed != null) {
+            for (DecodeFuture future : resumed) {
+                future.resume();
+            }
+        }
+    }
+}
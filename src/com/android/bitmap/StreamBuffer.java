@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Keeps every byte read from a source stream in memory, for progressive decodes. The bytes
+ * received so far can be decoded as often as needed while the source is still arriving, and the
+ * streams returned by {@link #newStream()} can be reset to the beginning without opening the
+ * source again.
+ * <p/>
+ * The source is only read on demand, by {@link #fill()} or by reading past the end of the buffer
+ * from one of its streams, so the header passes of a decode only wait for the header bytes.
+ * <p/>
+ * This class is not thread safe. It is meant to be used by a single decoding thread.
+ */
+class StreamBuffer {
+
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final InputStream mSource;
+    private byte[] mData = new byte[INITIAL_CAPACITY];
+    private int mLength;
+    private boolean mComplete;
+
+    StreamBuffer(final InputStream source) {
+        mSource = source;
+    }
+
+    /**
+     * Read the next chunk of the source into the buffer. Blocks until some bytes arrive or the
+     * source ends.
+     *
+     * @return false if the source has ended.
+     */
+    boolean fill() throws IOException {
+        if (mComplete) {
+            return false;
+        }
+        if (mLength + CHUNK_SIZE > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mLength + CHUNK_SIZE));
+        }
+        final int read = mSource.read(mData, mLength, CHUNK_SIZE);
+        if (read < 0) {
+            mComplete = true;
+            return false;
+        }
+        mLength += read;
+        return true;
+    }
+
+    /**
+     * @return The buffer. Only the first {@link #getLength()} bytes are valid. The array may be
+     * replaced by the next {@link #fill()}.
+     */
+    byte[] getData() {
+        return mData;
+    }
+
+    int getLength() {
+        return mLength;
+    }
+
+    boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * @return A new stream over the whole source, starting at the beginning. It supports mark and
+     * reset, and closing it closes the source.
+     */
+    InputStream newStream() {
+        return new BufferStream();
+    }
+
+    private class BufferStream extends InputStream {
+        private int mPosition;
+        private int mMark;
+
+        /**
+         * @return false if the position is at the end of the source.
+         */
+        private boolean ensureAvailable() throws IOException {
+            while (mPosition >= mLength) {
+                if (!fill()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureAvailable()) {
+                return -1;
+            }
+            return mData[mPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count)
+                throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (!ensureAvailable()) {
+                return -1;
+            }
+            final int read = Math.min(count, mLength - mPosition);
+            System.arraycopy(mData, mPosition, buffer, offset, read);
+            mPosition += read;
+            return read;
+        }
+
+        @Override
+        public long skip(final long count) throws IOException {
+            long skipped = 0;
+            while (skipped < count && ensureAvailable()) {
+                final int step = (int) Math.min(count - skipped, mLength - mPosition);
+                mPosition += step;
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mLength - mPosition;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(final int readLimit) {
+            mMark = mPosition;
+        }
+
+        @Override
+        public void reset() {
+            mPosition = mMark;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSource.close();
+        }
+    }
+}
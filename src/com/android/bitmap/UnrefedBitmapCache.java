@@ -22,6 +22,11 @@ import android.util.LruCache;
 import com.android.bitmap.ReusableBitmap.NullReusableBitmap;
 import com.android.bitmap.util.Trace;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 /**
  * This subclass provides custom pool behavior. The pool can be set to block on {@link #poll()} if
  * nothing can be returned. This is useful if you know you will incur high costs upon receiving
@@ -31,13 +36,22 @@ import com.android.bitmap.util.Trace;
  * This subclass provides custom cache behavior. Null values can be cached. Later,
  * when the same key is used to retrieve the value, a {@link NullReusableBitmap} singleton will
  * be returned.
+ *
+ * With a {@link RequestDeduplicator}, keys are canonicalized when they are put, and when a lookup
+ * misses, so equivalent keys share one cache entry. Drawables that canonicalize their keys
+ * themselves hit without canonicalizing again.
+ *
+ * While blocking, {@link #pollAsync(PollCallback)} parks the callback instead of a thread. Each
+ * offered bitmap is handed directly to the longest parked callback, if any.
  */
 public class UnrefedBitmapCache extends UnrefedPooledCache<RequestKey, ReusableBitmap>
-        implements BitmapCache {
+        implements AsyncBitmapCache {
     private boolean mBlocking = false;
     private final Object mLock = new Object();
+    private final ArrayDeque<PollCallback> mParked = new ArrayDeque<PollCallback>();
 
     private LruCache<RequestKey, NullReusableBitmap> mNullRequests;
+    private volatile RequestDeduplicator mDeduplicator;
 
     private final static boolean DEBUG = DecodeTask.DEBUG;
     private final static String TAG = UnrefedBitmapCache.class.getSimpleName();
@@ -51,6 +65,26 @@ public class UnrefedBitmapCache extends UnrefedPooledCache<RequestKey, ReusableB
         }
     }
 
+    /**
+     * Set an optional deduplicator, shared with the drawables, to canonicalize keys with. Set it
+     * before the cache is used, since entries put before are not canonicalized.
+     */
+    public void setRequestDeduplicator(final RequestDeduplicator deduplicator) {
+        mDeduplicator = deduplicator;
+    }
+
+    private RequestKey canonicalize(final RequestKey key) {
+        final RequestDeduplicator deduplicator = mDeduplicator;
+        return deduplicator != null ? deduplicator.canonicalize(key) : key;
+    }
+
+    private ReusableBitmap getExact(final RequestKey key, final boolean incrementRefCount) {
+        if (mNullRequests != null && mNullRequests.get(key) != null) {
+            return NullReusableBitmap.getInstance();
+        }
+        return super.get(key, incrementRefCount);
+    }
+
     /**
      * Declare that {@link #poll()} should now block until it can return something.
      */
@@ -66,6 +100,33 @@ public class UnrefedBitmapCache extends UnrefedPooledCache<RequestKey, ReusableB
                 mLock.notifyAll();
             }
         }
+        if (!blocking) {
+            releaseParked();
+        }
+    }
+
+    /**
+     * Run every parked callback with whatever the pool has left.
+     */
+    private void releaseParked() {
+        final List<PollCallback> callbacks;
+        final List<ReusableBitmap> bitmaps;
+        synchronized (mLock) {
+            if (mParked.isEmpty()) {
+                return;
+            }
+            callbacks = new ArrayList<PollCallback>(mParked);
+            mParked.clear();
+            bitmaps = new ArrayList<ReusableBitmap>(callbacks.size());
+            super.poll(callbacks.size(), bitmaps);
+        }
+        if (DEBUG) {
+            Log.d(TAG, String.format("AltBitmapCache: releasing %d parked with %d bitmaps",
+                    callbacks.size(), bitmaps.size()));
+        }
+        for (int i = 0; i < callbacks.size(); i++) {
+            callbacks.get(i).onPolled(i < bitmaps.size() ? bitmaps.get(i) : null);
+        }
     }
 
     @Override
@@ -104,31 +165,80 @@ public class UnrefedBitmapCache extends UnrefedPooledCache<RequestKey, ReusableB
         return bitmap;
     }
 
+    /**
+     * Unlike {@link #poll()}, this method never blocks, even if {@link #setBlocking(boolean)} has
+     * been called with true.
+     */
+    @Override
+    public int poll(final int maxCount, final Collection<? super ReusableBitmap> out) {
+        synchronized (mLock) {
+            return super.poll(maxCount, out);
+        }
+    }
+
+    @Override
+    public void pollAsync(final PollCallback callback) {
+        final ReusableBitmap bitmap;
+        synchronized (mLock) {
+            bitmap = super.poll();
+            if (bitmap == null && mBlocking) {
+                if (DEBUG) {
+                    Log.d(TAG, "AltBitmapCache: parking " + callback);
+                }
+                mParked.offer(callback);
+                return;
+            }
+        }
+        callback.onPolled(bitmap);
+    }
+
+    @Override
+    public boolean cancelPoll(final PollCallback callback) {
+        synchronized (mLock) {
+            return mParked.remove(callback);
+        }
+    }
+
     @Override
     public void offer(final ReusableBitmap value) {
+        // Validate before a handoff too, so that a parked decoder never gets a bitmap that the
+        // pool would have rejected.
+        checkOffer(value);
+        final PollCallback parked;
         synchronized (mLock) {
-            super.offer(value);
-            if (DEBUG) {
-                Log.d(TAG, "AltBitmapCache: offer +1");
+            parked = mParked.poll();
+            if (parked == null) {
+                super.offer(value);
+                if (DEBUG) {
+                    Log.d(TAG, "AltBitmapCache: offer +1");
+                }
+                // new resource gained. Notify one thread.
+                mLock.notify();
             }
-            // new resource gained. Notify one thread.
-            mLock.notify();
+        }
+        if (parked != null) {
+            // Hand the resource straight to the longest parked callback.
+            parked.onPolled(value);
         }
     }
 
     @Override
     public ReusableBitmap get(final RequestKey key, final boolean incrementRefCount) {
-        if (mNullRequests != null && mNullRequests.get(key) != null) {
-            return NullReusableBitmap.getInstance();
+        final ReusableBitmap result = getExact(key, incrementRefCount);
+        if (result != null || mDeduplicator == null) {
+            return result;
         }
-        return super.get(key, incrementRefCount);
+        // Missed. The entry may be under the canonical key.
+        final RequestKey canonical = canonicalize(key);
+        return canonical != key ? getExact(canonical, incrementRefCount) : null;
     }
 
     /**
      * Note: The cache only supports same-sized bitmaps.
      */
     @Override
-    public ReusableBitmap put(final RequestKey key, final ReusableBitmap value) {
+    public ReusableBitmap put(RequestKey key, final ReusableBitmap value) {
+        key = canonicalize(key);
         if (mNullRequests != null && (value == null || value == NullReusableBitmap.getInstance())) {
             mNullRequests.put(key, NullReusableBitmap.getInstance());
             return null;
@@ -21,6 +21,8 @@ import android.util.LruCache;
 
 import com.android.bitmap.util.Trace;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -108,13 +110,19 @@ public class UnrefedPooledCache<K, V extends Poolable> implements PooledCache<K,
 
     @Override
     public void offer(V value) {
+        checkOffer(value);
         Trace.beginSection("pool offer");
+        mPool.offer(value);
+        Trace.endSection();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value is still referenced or cannot be pooled.
+     */
+    protected void checkOffer(V value) {
         if (value.getRefCount() != 0 || !value.isEligibleForPooling()) {
-            Trace.endSection();
             throw new IllegalArgumentException("unexpected offer of an invalid object: " + value);
         }
-        mPool.offer(value);
-        Trace.endSection();
     }
 
     @Override
@@ -162,6 +170,51 @@ public class UnrefedPooledCache<K, V extends Poolable> implements PooledCache<K,
         }
     }
 
+    /**
+     * Remove up to maxCount Poolables from the pool in a single operation, for callers that know
+     * they are about to need several of them. This never blocks.
+     *
+     * @param maxCount the maximum number of Poolables to remove.
+     * @param out      the collection to add the removed Poolables to.
+     * @return the number of Poolables added to out.
+     */
+    public int poll(int maxCount, Collection<? super V> out) {
+        Trace.beginSection("pool poll multiple");
+        int count = mPool.drainTo(out, maxCount);
+        if (count == maxCount) {
+            Trace.endSection();
+            return count;
+        }
+
+        synchronized (mCache) {
+            // Scavenge the eldest unreferenced cache entries, as long as the cache keeps enough
+            // eligible (unreferenced) items to stay warm. See poll().
+            int unrefSize = 0;
+            for (V value : mCache.values()) {
+                if (value.getRefCount() == 0 && value.isEligibleForPooling()) {
+                    unrefSize += sizeOf(value);
+                }
+            }
+            final Iterator<Map.Entry<K, V>> it = mCache.entrySet().iterator();
+            while (count < maxCount && unrefSize > mTargetSize && it.hasNext()) {
+                final Map.Entry<K, V> entry = it.next();
+                final V value = entry.getValue();
+                if (value.getRefCount() > 0 || !value.isEligibleForPooling()) {
+                    continue;
+                }
+                it.remove();
+                unrefSize -= sizeOf(value);
+                out.add(value);
+                count++;
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "POOL POLL MULTIPLE, wanted=" + maxCount + " got=" + count);
+        }
+        Trace.endSection();
+        return count;
+    }
+
     protected int sizeOf(V value) {
         return 1;
     }
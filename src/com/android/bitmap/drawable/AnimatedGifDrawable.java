@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bitmap.drawable;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.bitmap.DecodeMemoryLimiter;
+import com.android.bitmap.DecodeTask;
+import com.android.bitmap.GifDecoder;
+import com.android.bitmap.RequestKey;
+import com.android.bitmap.ReusableBitmap;
+import com.android.bitmap.util.Trace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * A drawable that plays an animated GIF. Frames are decoded by a {@link GifDecoder} on a
+ * worker thread, one frame ahead of the one on screen, into a small ring of
+ * {@link ReusableBitmap}s owned by this drawable. The next frame is shown with
+ * {@link #scheduleSelf(Runnable, long)} when its delay elapses.
+ * <p/>
+ * If the worker falls behind, frames whose display time has already passed are composited but
+ * never written to a bitmap or shown. The animation pauses while the drawable is invisible, see
+ * {@link #setVisible(boolean, boolean)}, and resumes where it left off.
+ * <p/>
+ * The source is read with {@link RequestKey#createInputStream()}. GIFs are never sampled, so
+ * their size is capped by {@link GifDecoder#MAX_PIXELS} and, if one is set, the ceiling of the
+ * {@link DecodeMemoryLimiter}.
+ * <p/>
+ * All methods should be called from the UI thread.
+ */
+public class AnimatedGifDrawable extends Drawable implements Runnable {
+
+    /**
+     * The frame on screen, the next frame, and one being rendered.
+     */
+    private static final int RING_SIZE = 3;
+    /**
+     * The ARGB buffers held per pixel of the GIF: the decoder's canvas and saved canvas, and the
+     * ring.
+     */
+    private static final int BUFFERS = 2 + RING_SIZE;
+
+    private final Paint mPaint = new Paint();
+    private final Executor mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile DecodeMemoryLimiter mMemoryLimiter;
+
+    // The ring of frame bitmaps. Guarded by mRingLock, used from the UI and worker threads.
+    private final Object mRingLock = new Object();
+    private final ArrayDeque<ReusableBitmap> mFreeFrames = new ArrayDeque<ReusableBitmap>();
+    private int mRingWidth;
+    private int mRingHeight;
+    private int mRingAllocated;
+
+    private RequestKey mKey;
+    /**
+     * Incremented on every bind and unbind, so that the results of stale work are dropped.
+     */
+    private int mGeneration;
+    private GifDecoder mDecoder;
+    private Frame mCurrent;
+    private Frame mPending;
+    private long mCurrentShownAt;
+    private int mLoopsPlayed;
+    private boolean mRunning;
+    private boolean mFrameRequested;
+
+    private static final String TAG = AnimatedGifDrawable.class.getSimpleName();
+    private static final boolean DEBUG = DecodeTask.DEBUG;
+
+    public AnimatedGifDrawable() {
+        this(BasicBitmapDrawable.getDefaultExecutor());
+    }
+
+    /**
+     * @param executor The executor to load the GIF and decode its frames on.
+     */
+    public AnimatedGifDrawable(final Executor executor) {
+        mExecutor = executor;
+        mPaint.setFilterBitmap(true);
+        mPaint.setDither(true);
+    }
+
+    /**
+     * Set an optional limiter, to refuse GIFs whose frame buffers alone would take more than its
+     * ceiling.
+     */
+    public void setDecodeMemoryLimiter(final DecodeMemoryLimiter memoryLimiter) {
+        mMemoryLimiter = memoryLimiter;
+    }
+
+    public final RequestKey getKey() {
+        return mKey;
+    }
+
+    /**
+     * Load and start playing the GIF of the given key.
+     */
+    public void bind(final RequestKey key) {
+        unbind();
+        mKey = key;
+        if (key != null) {
+            mExecutor.execute(new LoadTask(key, mGeneration));
+        }
+    }
+
+    /**
+     * Stop playing and release the frames of the current GIF.
+     */
+    public void unbind() {
+        mGeneration++;
+        stop();
+        recycleFrame(mCurrent);
+        recycleFrame(mPending);
+        mCurrent = null;
+        mPending = null;
+        mDecoder = null;
+        mKey = null;
+        mLoopsPlayed = 0;
+        mFrameRequested = false;
+        invalidateSelf();
+    }
+
+    @Override
+    public boolean setVisible(final boolean visible, final boolean restart) {
+        final boolean changed = super.setVisible(visible, restart);
+        if (visible) {
+            start();
+        } else {
+            stop();
+        }
+        return changed;
+    }
+
+    private void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        // Resume from now, rather than skipping the frames we missed while paused.
+        mCurrentShownAt = SystemClock.uptimeMillis();
+        if (mPending != null) {
+            scheduleSelf(this, mCurrentShownAt + mCurrent.delayMs);
+        } else {
+            requestNextFrame();
+        }
+    }
+
+    private void stop() {
+        mRunning = false;
+        unscheduleSelf(this);
+    }
+
+    /**
+     * Show the next frame. Runs on the UI thread when the current frame's delay elapses.
+     */
+    @Override
+    public void run() {
+        if (!mRunning || mPending == null) {
+            return;
+        }
+        if (mPending.index <= mCurrent.index) {
+            mLoopsPlayed++;
+        }
+        recycleFrame(mCurrent);
+        mCurrent = mPending;
+        mPending = null;
+        mCurrentShownAt = SystemClock.uptimeMillis();
+        invalidateSelf();
+        requestNextFrame();
+    }
+
+    private void requestNextFrame() {
+        if (!mRunning || mFrameRequested || mDecoder == null || mCurrent == null
+                || mDecoder.getFrameCount() < 2) {
+            return;
+        }
+        final int loopCount = mDecoder.getLoopCount();
+        final boolean finalLoop = loopCount != GifDecoder.LOOP_FOREVER
+                && mLoopsPlayed + 1 >= loopCount;
+        if (finalLoop && mCurrent.index == mDecoder.getFrameCount() - 1) {
+            // Hold the last frame once the final loop is over.
+            return;
+        }
+        mFrameRequested = true;
+        mExecutor.execute(new FrameTask(mDecoder, mGeneration,
+                mCurrentShownAt + mCurrent.delayMs, finalLoop));
+    }
+
+    private void onLoaded(final int generation, final GifDecoder decoder, final Frame first) {
+        if (generation != mGeneration) {
+            recycleFrame(first);
+            return;
+        }
+        mDecoder = decoder;
+        mCurrent = first;
+        mCurrentShownAt = SystemClock.uptimeMillis();
+        invalidateSelf();
+        if (mRunning) {
+            // Started while loading, before there was a frame to request.
+            requestNextFrame();
+        } else if (isVisible()) {
+            start();
+        }
+    }
+
+    private void onFrameReady(final int generation, final Frame frame) {
+        if (generation != mGeneration) {
+            recycleFrame(frame);
+            return;
+        }
+        mFrameRequested = false;
+        mPending = frame;
+        if (mRunning) {
+            // Runs right away if the frame is already due.
+            scheduleSelf(this, frame.dueTime);
+        }
+    }
+
+    /**
+     * Take a bitmap of the given size from the ring. May be called from any thread.
+     */
+    private ReusableBitmap obtainFrameBitmap(final int width, final int height) {
+        synchronized (mRingLock) {
+            if (width != mRingWidth || height != mRingHeight) {
+                for (ReusableBitmap bitmap : mFreeFrames) {
+                    bitmap.bmp.recycle();
+                }
+                mFreeFrames.clear();
+                mRingWidth = width;
+                mRingHeight = height;
+                mRingAllocated = 0;
+            }
+            final ReusableBitmap bitmap = mFreeFrames.poll();
+            if (bitmap != null) {
+                return bitmap;
+            }
+            if (mRingAllocated >= RING_SIZE && DEBUG) {
+                Log.d(TAG, "frame ring exhausted, allocating");
+            }
+            mRingAllocated++;
+        }
+        final ReusableBitmap bitmap = new ReusableBitmap(
+                Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888), false /* reusable */);
+        bitmap.setLogicalWidth(width);
+        bitmap.setLogicalHeight(height);
+        return bitmap;
+    }
+
+    /**
+     * Return a frame's bitmap to the ring. May be called from any thread.
+     */
+    private void recycleFrame(final Frame frame) {
+        if (frame == null) {
+            return;
+        }
+        final ReusableBitmap bitmap = frame.bitmap;
+        synchronized (mRingLock) {
+            if (bitmap.getLogicalWidth() == mRingWidth
+                    && bitmap.getLogicalHeight() == mRingHeight
+                    && mFreeFrames.size() < RING_SIZE) {
+                mFreeFrames.offer(bitmap);
+                return;
+            }
+        }
+        bitmap.bmp.recycle();
+    }
+
+    @Override
+    public void draw(final Canvas canvas) {
+        if (mCurrent == null || getBounds().isEmpty()) {
+            return;
+        }
+        canvas.drawBitmap(mCurrent.bitmap.bmp, null, getBounds(), mPaint);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mDecoder != null ? mDecoder.getWidth() : -1;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mDecoder != null ? mDecoder.getHeight() : -1;
+    }
+
+    @Override
+    public void setAlpha(final int alpha) {
+        final int old = mPaint.getAlpha();
+        mPaint.setAlpha(alpha);
+        if (alpha != old) {
+            invalidateSelf();
+        }
+    }
+
+    @Override
+    public void setColorFilter(final ColorFilter cf) {
+        mPaint.setColorFilter(cf);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+
+    private static class Frame {
+        final ReusableBitmap bitmap;
+        final int index;
+        final int delayMs;
+        /**
+         * When to show this frame, in {@link SystemClock#uptimeMillis()} time.
+         */
+        final long dueTime;
+
+        Frame(final ReusableBitmap bitmap, final int index, final int delayMs,
+                final long dueTime) {
+            this.bitmap = bitmap;
+            this.index = index;
+            this.delayMs = delayMs;
+            this.dueTime = dueTime;
+        }
+    }
+
+    /**
+     * Reads the GIF and renders its first frame.
+     */
+    private class LoadTask implements Runnable {
+        private final RequestKey mKey;
+        private final int mGeneration;
+
+        LoadTask(final RequestKey key, final int generation) {
+            mKey = key;
+            mGeneration = generation;
+        }
+
+        @Override
+        public void run() {
+            Trace.beginSection("gif load");
+            final GifDecoder decoder;
+            try {
+                decoder = new GifDecoder(readFully(mKey));
+            } catch (IOException e) {
+                Log.e(TAG, "failed to load GIF: key=" + mKey, e);
+                return;
+            } finally {
+                Trace.endSection();
+            }
+            final DecodeMemoryLimiter memoryLimiter = mMemoryLimiter;
+            final long bytes = (long) BUFFERS * 4 * decoder.getWidth() * decoder.getHeight();
+            if (memoryLimiter != null && bytes > memoryLimiter.getCeilingBytes()) {
+                Log.e(TAG, "GIF too large for the memory limiter: key=" + mKey + " bytes="
+                        + bytes);
+                return;
+            }
+            decoder.advance();
+            final ReusableBitmap bitmap = obtainFrameBitmap(decoder.getWidth(),
+                    decoder.getHeight());
+            decoder.writeTo(bitmap.bmp);
+            final Frame frame = new Frame(bitmap, 0, decoder.getFrameDelay(0),
+                    SystemClock.uptimeMillis());
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onLoaded(mGeneration, decoder, frame);
+                }
+            });
+        }
+
+        private byte[] readFully(final RequestKey key) throws IOException {
+            final InputStream in = key.createInputStream();
+            if (in == null) {
+                throw new IOException("no input stream");
+            }
+            try {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[16 * 1024];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                return out.toByteArray();
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders the next frame due at the given time, skipping frames whose time has passed. In the
+     * final loop, frames are never skipped past the last one.
+     */
+    private class FrameTask implements Runnable {
+        private final GifDecoder mDecoder;
+        private final int mGeneration;
+        private final long mDueTime;
+        private final boolean mFinalLoop;
+
+        FrameTask(final GifDecoder decoder, final int generation, final long dueTime,
+                final boolean finalLoop) {
+            mDecoder = decoder;
+            mGeneration = generation;
+            mDueTime = dueTime;
+            mFinalLoop = finalLoop;
+        }
+
+        @Override
+        public void run() {
+            final GifDecoder decoder = mDecoder;
+            long dueTime = mDueTime;
+            decoder.advance();
+            int skipped = 0;
+            final int lastIndex = decoder.getFrameCount() - 1;
+            while (skipped < lastIndex
+                    && !(mFinalLoop && decoder.getCurrentFrameIndex() == lastIndex)
+                    && SystemClock.uptimeMillis()
+                    > dueTime + decoder.getFrameDelay(decoder.getCurrentFrameIndex())) {
+                // Behind: this frame would already be over by the time it is shown.
+                dueTime += decoder.getFrameDelay(decoder.getCurrentFrameIndex());
+                decoder.advance();
+                skipped++;
+            }
+            if (DEBUG && skipped > 0) {
+                Log.d(TAG, "skipped " + skipped + " frames: key=" + getKey());
+            }
+
+            final int index = decoder.getCurrentFrameIndex();
+            final ReusableBitmap bitmap = obtainFrameBitmap(decoder.getWidth(),
+                    decoder.getHeight());
+            decoder.writeTo(bitmap.bmp);
+            final Frame frame = new Frame(bitmap, index, decoder.getFrameDelay(index), dueTime);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onFrameReady(mGeneration, frame);
+                }
+            });
+        }
+    }
+}
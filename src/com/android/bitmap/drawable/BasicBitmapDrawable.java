@@ -22,22 +22,33 @@ import android.graphics.Paint;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
 import com.android.bitmap.BitmapCache;
+import com.android.bitmap.DecodeMemoryLimiter;
 import com.android.bitmap.DecodeTask;
 import com.android.bitmap.DecodeTask.DecodeCallback;
 import com.android.bitmap.DecodeTask.DecodeOptions;
+import com.android.bitmap.DecodeTask.ProgressiveDecodeCallback;
+import com.android.bitmap.FrameDispatcher;
+import com.android.bitmap.MetadataCache;
 import com.android.bitmap.NamedThreadFactory;
+import com.android.bitmap.RequestDeduplicator;
+import com.android.bitmap.RequestDeduplicator.Subscription;
 import com.android.bitmap.RequestKey;
+import com.android.bitmap.RequestKey.AsyncInputStreamSource;
 import com.android.bitmap.RequestKey.Cancelable;
 import com.android.bitmap.RequestKey.FileDescriptorFactory;
 import com.android.bitmap.ReusableBitmap;
+import com.android.bitmap.ScrollThrottle;
 import com.android.bitmap.util.BitmapUtils;
 import com.android.bitmap.util.RectUtils;
 import com.android.bitmap.util.Trace;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -55,8 +66,13 @@ import java.util.concurrent.TimeUnit;
  * {@link com.android.bitmap.view.BitmapDrawableImageView} class has been created to do the
  * appropriate unbind operation when the view is detached from the window.
  */
-public class BasicBitmapDrawable extends Drawable implements DecodeCallback,
-        Drawable.Callback, RequestKey.Callback {
+public class BasicBitmapDrawable extends Drawable implements ProgressiveDecodeCallback,
+        Drawable.Callback, RequestKey.Callback, RequestKey.InputStreamCallback {
+
+    /**
+     * No timeout, for {@link #setInputStreamTimeout(long)}.
+     */
+    public static final long NO_TIMEOUT = -1;
 
     protected static Rect sRect;
 
@@ -70,9 +86,35 @@ public class BasicBitmapDrawable extends Drawable implements DecodeCallback,
 
     private final boolean mLimitDensity;
     private final float mDensity;
+    private MetadataCache mMetadataCache;
+    private DecodeMemoryLimiter mMemoryLimiter;
+    private FrameDispatcher mFrameDispatcher;
+    private ScrollThrottle mScrollThrottle;
+    private RequestDeduplicator mDeduplicator;
+    private boolean mProgressiveDecode;
+    private int mSampleSizeStrategy = DecodeOptions.STRATEGY_ROUND_NEAREST;
     private ReusableBitmap mBitmap;
+    /**
+     * The partial result of a progressive decode in progress. It is never pooled, so it needs no
+     * reference.
+     */
+    private ReusableBitmap mPartialBitmap;
     private DecodeTask mTask;
+    /**
+     * Our subscription to a decode shared through mDeduplicator, instead of mTask.
+     */
+    private Subscription mSubscription;
     private Cancelable mCreateFileDescriptorFactoryTask;
+    private Cancelable mCreateInputStreamTask;
+    private long mInputStreamTimeoutMs = NO_TIMEOUT;
+    private Handler mHandler;
+
+    private final Runnable mInputStreamTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onInputStreamTimeout();
+        }
+    };
 
     // based on framework CL:I015d77
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
@@ -113,8 +155,12 @@ public class BasicBitmapDrawable extends Drawable implements DecodeCallback,
         return mPrevKey;
     }
 
+    /**
+     * @return The bitmap to draw: the decoded bitmap, or else the partial result of a progressive
+     * decode in progress, or null.
+     */
     protected ReusableBitmap getBitmap() {
-        return mBitmap;
+        return mBitmap != null ? mBitmap : mPartialBitmap;
     }
 
     /**
@@ -131,6 +177,89 @@ public class BasicBitmapDrawable extends Drawable implements DecodeCallback,
         }
     }
 
+    /**
+     * Set an optional cache of source metadata to share between decodes. This allows decodes of
+     * previously seen sources to skip the Exif and bounds passes.
+     */
+    public void setMetadataCache(MetadataCache metadataCache) {
+        mMetadataCache = metadataCache;
+    }
+
+    /**
+     * Set an optional limiter to share between decodes, to bound the memory of the pixel decodes
+     * in flight.
+     */
+    public void setDecodeMemoryLimiter(DecodeMemoryLimiter memoryLimiter) {
+        mMemoryLimiter = memoryLimiter;
+    }
+
+    /**
+     * Set an optional dispatcher to deliver decode callbacks through. Sharing one dispatcher
+     * between drawables coalesces their decode completions so they are applied once per frame.
+     */
+    public void setFrameDispatcher(FrameDispatcher frameDispatcher) {
+        mFrameDispatcher = frameDispatcher;
+    }
+
+    /**
+     * Set an optional throttle to limit pixel decodes while the list scrolls. Pair it with a
+     * {@link #setMetadataCache(MetadataCache) metadata cache} so that deferred decodes still
+     * read their headers right away.
+     */
+    public void setScrollThrottle(ScrollThrottle scrollThrottle) {
+        mScrollThrottle = scrollThrottle;
+    }
+
+    /**
+     * Set the maximum time to wait for a key's {@link AsyncInputStreamSource} to deliver its
+     * stream, for each request. Past it, the request is cancelled and fails as a decode would.
+     * Applies to requests made afterwards.
+     *
+     * @param timeoutMs The timeout in milliseconds, or {@link #NO_TIMEOUT}.
+     */
+    public void setInputStreamTimeout(long timeoutMs) {
+        mInputStreamTimeoutMs = timeoutMs;
+        if (timeoutMs >= 0 && mHandler == null) {
+            mHandler = new Handler();
+        }
+    }
+
+    /**
+     * Set an optional deduplicator, shared with the cache and the other drawables. Bound keys are
+     * then canonicalized, and drawables bound to equivalent keys share one decode.
+     */
+    public void setRequestDeduplicator(RequestDeduplicator deduplicator) {
+        mDeduplicator = deduplicator;
+    }
+
+    /**
+     * @return Whether to canonicalize bound keys and share decodes through the deduplicator.
+     * Subclasses that track their decodes by key elsewhere may need each drawable to keep a key
+     * and a decode of its own.
+     */
+    protected boolean shouldDeduplicate() {
+        return mDeduplicator != null;
+    }
+
+    /**
+     * Set whether to decode input stream sources progressively, drawing partial results while
+     * the rest of the source arrives. Useful for slow sources such as the network.
+     */
+    public void setProgressiveDecode(boolean progressiveDecode) {
+        mProgressiveDecode = progressiveDecode;
+    }
+
+    /**
+     * Set how to pick the sample size of decodes. Use {@link DecodeOptions#STRATEGY_EXACT} to
+     * decode to exactly the decode dimensions, so that the bitmap is drawn without scaling when
+     * they match the bounds.
+     *
+     * @param sampleSizeStrategy One of the {@link DecodeOptions} STRATEGY constants.
+     */
+    public void setSampleSizeStrategy(int sampleSizeStrategy) {
+        mSampleSizeStrategy = sampleSizeStrategy;
+    }
+
     /**
      * Binds to the given key and start the decode process. This will first look in the cache, then
      * decode from the request key if not found.
@@ -141,6 +270,9 @@ public class BasicBitmapDrawable extends Drawable implements DecodeCallback,
      */
     public void bind(RequestKey key) {
         Trace.beginSection("bind");
+        if (shouldDeduplicate()) {
+            key = mDeduplicator.canonicalize(key);
+        }
         if (mCurrKey != null && mCurrKey.equals(key)) {
             Trace.endSection();
             return;
@@ -188,6 +320,7 @@ public class BasicBitmapDrawable extends Drawable implements DecodeCallback,
             mBitmap.releaseReference();
             mBitmap = null;
         }
+        mPartialBitmap = null;
         Trace.endSection();
 
         mPrevKey = mCurrKey;
@@ -197,10 +330,15 @@ public class BasicBitmapDrawable extends Drawable implements DecodeCallback,
             mTask.cancel();
             mTask = null;
         }
+        if (mSubscription != null) {
+            mSubscription.cancel();
+            mSubscription = null;
+        }
         if (mCreateFileDescriptorFactoryTask != null) {
             mCreateFileDescriptorFactoryTask.cancel();
             mCreateFileDescriptorFactoryTask = null;
         }
+        cancelCreateInputStream();
 
         if (key == null) {
             invalidateSelf();
@@ -233,6 +371,7 @@ public class BasicBitmapDrawable extends Drawable implements DecodeCallback,
             mBitmap.releaseReference();
         }
         mBitmap = bmp;
+        mPartialBitmap = null;
         invalidateSelf();
     }
 
@@ -244,15 +383,88 @@ public class BasicBitmapDrawable extends Drawable implements DecodeCallback,
             return;
         }
 
+        if (shouldDeduplicate()) {
+            // Another drawable may already be decoding an equivalent key.
+            mSubscription = mDeduplicator.join(mCurrKey, getBufferWidth(), getBufferHeight(),
+                    this);
+            if (mSubscription != null) {
+                return;
+            }
+        }
+
         // Create file descriptor if request supports it.
         mCreateFileDescriptorFactoryTask = mCurrKey
                 .createFileDescriptorFactoryAsync(mCurrKey, this);
         if (mCreateFileDescriptorFactoryTask == null) {
             // Use input stream if request does not.
+            createInputStream();
+        }
+    }
+
+    /**
+     * Open the input stream asynchronously if the request supports it, or else decode from the
+     * input stream opened by the decode task.
+     */
+    private void createInputStream() {
+        if (mCurrKey instanceof AsyncInputStreamSource) {
+            mCreateInputStreamTask = ((AsyncInputStreamSource) mCurrKey)
+                    .createInputStreamAsync(mCurrKey, this);
+        }
+        if (mCreateInputStreamTask == null) {
             decode(null);
+        } else if (mInputStreamTimeoutMs >= 0 && mHandler != null) {
+            mHandler.postDelayed(mInputStreamTimeoutRunnable, mInputStreamTimeoutMs);
+        }
+    }
+
+    private void cancelCreateInputStream() {
+        if (mCreateInputStreamTask != null) {
+            mCreateInputStreamTask.cancel();
+            mCreateInputStreamTask = null;
+        }
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mInputStreamTimeoutRunnable);
         }
     }
 
+    @Override
+    public void inputStreamCreated(final RequestKey key, final InputStream stream) {
+        if (mCreateInputStreamTask == null || !key.equals(mCurrKey)) {
+            // Cancelled or timed out. The stream is ours to close.
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return;
+        }
+        mCreateInputStreamTask = null;
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mInputStreamTimeoutRunnable);
+        }
+
+        if (stream == null) {
+            onDecodeComplete(key, null);
+            return;
+        }
+        decode(null, stream);
+    }
+
+    /**
+     * Called when the input stream of the current request was not delivered in time.
+     */
+    protected void onInputStreamTimeout() {
+        if (mCreateInputStreamTask == null) {
+            return;
+        }
+        if (DEBUG) {
+            Log.d(TAG, String.format("input stream timed out: key=%s", mCurrKey));
+        }
+        cancelCreateInputStream();
+        onDecodeComplete(mCurrKey, null);
+    }
+
     @Override
     public void fileDescriptorFactoryCreated(final RequestKey key,
             final FileDescriptorFactory factory) {
@@ -271,34 +483,97 @@ public class BasicBitmapDrawable extends Drawable implements DecodeCallback,
      * Should only be overriden, not called.
      */
     protected void decode(final FileDescriptorFactory factory) {
+        decode(factory, null);
+    }
+
+    /**
+     * Should only be overriden, not called.
+     *
+     * @param stream A stream opened ahead of the decode, or null. The decode owns it.
+     */
+    protected void decode(final FileDescriptorFactory factory, final InputStream stream) {
         Trace.beginSection("decode");
-        final int bufferW;
-        final int bufferH;
-        if (mLimitDensity) {
-            final float scale =
-                    Math.min(1f, (float) MAX_BITMAP_DENSITY / DisplayMetrics.DENSITY_DEFAULT
-                            / mDensity);
-            bufferW = (int) (mDecodeWidth * scale);
-            bufferH = (int) (mDecodeHeight * scale);
-        } else {
-            bufferW = mDecodeWidth;
-            bufferH = mDecodeHeight;
-        }
+        final int bufferW = getBufferWidth();
+        final int bufferH = getBufferHeight();
 
         if (mTask != null) {
             mTask.cancel();
         }
+        if (mSubscription != null) {
+            mSubscription.cancel();
+            mSubscription = null;
+        }
         final DecodeOptions opts = new DecodeOptions(bufferW, bufferH, getDecodeVerticalCenter(),
-                DecodeOptions.STRATEGY_ROUND_NEAREST);
-        mTask = new DecodeTask(mCurrKey, opts, factory, this, mCache);
-        mTask.executeOnExecutor(getExecutor());
+                mSampleSizeStrategy);
+        opts.metadataCache = mMetadataCache;
+        opts.memoryLimiter = mMemoryLimiter;
+        opts.progressive = mProgressiveDecode;
+        if (shouldDeduplicate()) {
+            mSubscription = mDeduplicator.join(mCurrKey, bufferW, bufferH, this);
+            if (mSubscription == null) {
+                mSubscription = mDeduplicator.decode(mCurrKey, bufferW, bufferH, this,
+                        new RequestDeduplicator.TaskFactory() {
+                            @Override
+                            public DecodeTask createTask(final DecodeCallback callback) {
+                                return startTask(opts, factory, stream, callback);
+                            }
+                        });
+            } else if (stream != null) {
+                // An equivalent key is already being decoded. The stream is not needed.
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        } else {
+            mTask = startTask(opts, factory, stream, this);
+        }
         Trace.endSection();
     }
 
+    /**
+     * @return The width to decode to, after limiting the density.
+     */
+    private int getBufferWidth() {
+        return mLimitDensity ? (int) (mDecodeWidth * getDensityScale()) : mDecodeWidth;
+    }
+
+    /**
+     * @return The height to decode to, after limiting the density.
+     */
+    private int getBufferHeight() {
+        return mLimitDensity ? (int) (mDecodeHeight * getDensityScale()) : mDecodeHeight;
+    }
+
+    private float getDensityScale() {
+        return Math.min(1f, (float) MAX_BITMAP_DENSITY / DisplayMetrics.DENSITY_DEFAULT
+                / mDensity);
+    }
+
+    private DecodeTask startTask(final DecodeOptions opts, final FileDescriptorFactory factory,
+            final InputStream stream, final DecodeCallback callback) {
+        final DecodeTask task = new DecodeTask(mCurrKey, opts, factory, callback, mCache,
+                mFrameDispatcher);
+        task.setThrottle(mScrollThrottle);
+        if (stream != null) {
+            task.setInputStream(stream);
+        }
+        task.executeOnExecutor(getExecutor());
+        return task;
+    }
+
     protected Executor getExecutor() {
         return EXECUTOR;
     }
 
+    /**
+     * @return The default decode executor. Override {@link #getExecutor()} to use another one,
+     * e.g. an {@link com.android.bitmap.AdaptiveDecodeExecutor}.
+     */
+    public static Executor getDefaultExecutor() {
+        return EXECUTOR;
+    }
+
     protected float getDrawVerticalCenter() {
         return VERTICAL_CENTER;
     }
@@ -322,28 +597,34 @@ public class BasicBitmapDrawable extends Drawable implements DecodeCallback,
             return;
         }
 
-        if (hasBitmap()) {
+        final ReusableBitmap bitmap = getBitmap();
+        if (bitmap != null && bitmap.bmp != null) {
             BitmapUtils.calculateCroppedSrcRect(
-                    mBitmap.getLogicalWidth(), mBitmap.getLogicalHeight(),
+                    bitmap.getLogicalWidth(), bitmap.getLogicalHeight(),
                     bounds.width(), bounds.height(),
                     bounds.height(), Integer.MAX_VALUE,
                     getDrawVerticalCenter(), false /* absoluteFraction */,
                     getDrawVerticalOffsetMultiplier(), sRect);
 
-            final int orientation = mBitmap.getOrientation();
+            final int orientation = bitmap.getOrientation();
+            final boolean flipped = bitmap.isFlipped();
             // calculateCroppedSrcRect() gave us the source rectangle "as if" the orientation has
             // been corrected. We need to decode the uncorrected source rectangle. Calculate true
             // coordinates.
-            RectUtils.rotateRectForOrientation(orientation,
-                    new Rect(0, 0, mBitmap.getLogicalWidth(), mBitmap.getLogicalHeight()),
+            RectUtils.rotateRectForOrientation(orientation, flipped,
+                    new Rect(0, 0, bitmap.getLogicalWidth(), bitmap.getLogicalHeight()),
                     sRect);
 
             // We may need to rotate the canvas, so we also have to rotate the bounds.
             final Rect rotatedBounds = new Rect(bounds);
             RectUtils.rotateRect(orientation, bounds.centerX(), bounds.centerY(), rotatedBounds);
 
-            // Rotate the canvas.
+            // Rotate the canvas, then flip it. The flip is applied to the rotated bitmap, and the
+            // bounds are symmetric about their center, so they need no further transform.
             canvas.save();
+            if (flipped) {
+                canvas.scale(-1, 1, bounds.centerX(), bounds.centerY());
+            }
             canvas.rotate(orientation, bounds.centerX(), bounds.centerY());
             onDrawBitmap(canvas, sRect, rotatedBounds);
             canvas.restore();
@@ -359,8 +640,9 @@ public class BasicBitmapDrawable extends Drawable implements DecodeCallback,
      * The bitmap to be drawn can be found at {@link #getBitmap()}.
      */
     protected void onDrawBitmap(final Canvas canvas, final Rect src, final Rect dst) {
-        if (hasBitmap()) {
-            canvas.drawBitmap(mBitmap.bmp, src, dst, mPaint);
+        final ReusableBitmap bitmap = getBitmap();
+        if (bitmap != null && bitmap.bmp != null) {
+            canvas.drawBitmap(bitmap.bmp, src, dst, mPaint);
         }
     }
 
@@ -402,7 +684,21 @@ public class BasicBitmapDrawable extends Drawable implements DecodeCallback,
     }
 
     @Override
-    public void onDecodeCancel(final RequestKey key) { }
+    public void onDecodePartial(final RequestKey key, final ReusableBitmap partial) {
+        if (key.equals(mCurrKey) && mBitmap == null) {
+            mPartialBitmap = partial;
+            invalidateSelf();
+        }
+    }
+
+    @Override
+    public void onDecodeCancel(final RequestKey key) {
+        if (mPartialBitmap != null && key.equals(mCurrKey)) {
+            // The decode will not finish, so do not keep showing its partial result.
+            mPartialBitmap = null;
+            invalidateSelf();
+        }
+    }
 
     @Override
     public void invalidateDrawable(Drawable who) {
@@ -32,12 +32,15 @@ import android.view.animation.LinearInterpolator;
 
 import com.android.bitmap.BitmapCache;
 import com.android.bitmap.DecodeAggregator;
+import com.android.bitmap.DecodeLanes;
 import com.android.bitmap.DecodeTask;
 import com.android.bitmap.R;
 import com.android.bitmap.RequestKey;
 import com.android.bitmap.ReusableBitmap;
 import com.android.bitmap.util.Trace;
 
+import java.util.concurrent.Executor;
+
 /**
  * This class encapsulates all functionality needed to display a single image bitmap,
  * including request creation/cancelling, data unbinding and re-binding, and fancy animations
@@ -46,7 +49,7 @@ import com.android.bitmap.util.Trace;
  * The actual bitmap decode work is handled by {@link DecodeTask}.
  */
 public class ExtendedBitmapDrawable extends BasicBitmapDrawable implements
-    Runnable, Parallaxable, DecodeAggregator.Callback {
+    Runnable, Parallaxable, DecodeAggregator.SkipCallback {
 
     public static final int LOAD_STATE_UNINITIALIZED = 0;
     public static final int LOAD_STATE_NOT_YET_LOADED = 1;
@@ -69,6 +72,8 @@ public class ExtendedBitmapDrawable extends BasicBitmapDrawable implements
     private Progress mProgress;
     private int mProgressDelayMs;
     private final Handler mHandler = new Handler();
+    private int mGridRow = DecodeAggregator.NO_ROW;
+    private int mGridColumn;
 
     public ExtendedBitmapDrawable(final Resources res, final BitmapCache cache,
             final boolean limitDensity, ExtendedOptions opts) {
@@ -143,6 +148,19 @@ public class ExtendedBitmapDrawable extends BasicBitmapDrawable implements
         invalidateSelf();
     }
 
+    /**
+     * Set the position of this drawable in a grid, so that the {@link DecodeAggregator} displays
+     * the cells of a row together. Call this before binding, e.g. in the adapter's getView().
+     *
+     * @param row    The row of the cell, or {@link DecodeAggregator#NO_ROW} for ordering on its
+     *               own.
+     * @param column The column of the cell.
+     */
+    public void setGridPosition(int row, int column) {
+        mGridRow = row;
+        mGridColumn = column;
+    }
+
     /**
      * Get the ExtendedOptions used to instantiate this ExtendedBitmapDrawable. Any changes made to
      * the parameters inside the options will take effect immediately.
@@ -237,10 +255,27 @@ public class ExtendedBitmapDrawable extends BasicBitmapDrawable implements
         return mOpts.decodeVerticalCenter;
     }
 
+    /**
+     * The decode aggregator tracks one decode per key. Drawables bound to equivalent keys must
+     * not share a canonical key or a decode, or only the last one would get its bitmap.
+     */
+    @Override
+    protected boolean shouldDeduplicate() {
+        return super.shouldDeduplicate() && getDecodeAggregator() == null;
+    }
+
     private DecodeAggregator getDecodeAggregator() {
         return mOpts.decodeAggregator;
     }
 
+    @Override
+    protected Executor getExecutor() {
+        if (mOpts.decodeLane != null) {
+            return mOpts.decodeLane;
+        }
+        return super.getExecutor();
+    }
+
     /**
      * Instead of overriding this method, subclasses should override {@link #onDraw(Canvas)}.
      *
@@ -308,7 +343,7 @@ public class ExtendedBitmapDrawable extends BasicBitmapDrawable implements
     @Override
     public void onDecodeBegin(final RequestKey key) {
         if (getDecodeAggregator() != null) {
-            getDecodeAggregator().expect(key, this);
+            getDecodeAggregator().expect(key, mGridRow, mGridColumn, this);
         } else {
             onBecomeFirstExpected(key);
         }
@@ -325,6 +360,16 @@ public class ExtendedBitmapDrawable extends BasicBitmapDrawable implements
         mHandler.postDelayed(this, mProgressDelayMs);
     }
 
+    @Override
+    public void onSkipped(final RequestKey key) {
+        if (!key.equals(mCurrKey)) {
+            return;
+        }
+        // Our decode is stalled. Show progress now instead of after the usual delay.
+        mHandler.removeCallbacks(this);
+        run();
+    }
+
     @Override
     public void run() {
         if (mLoadState == LOAD_STATE_NOT_YET_LOADED) {
@@ -706,6 +751,12 @@ public class ExtendedBitmapDrawable extends BasicBitmapDrawable implements
          */
         public float parallaxSpeedMultiplier = 1;
 
+        /**
+         * Optional field. The {@link DecodeLanes} lane to decode in, e.g. to keep large images
+         * from starving small ones. If null, the default decode executor is used.
+         */
+        public DecodeLanes.Lane decodeLane = null;
+
         /**
          * Optional field if {@link #FEATURE_STATE_CHANGES} is supported. Must be an opaque color.
          *
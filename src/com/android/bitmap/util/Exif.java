@@ -29,16 +29,84 @@ import java.io.InputStream;
 public class Exif {
     private static final String TAG = Exif.class.getSimpleName();
 
+    /*
+     * Exif orientation values, as defined by the TIFF specification. Mirrored values are
+     * described as a clockwise rotation followed by a horizontal flip.
+     */
+    public static final int ORIENTATION_NORMAL = 1;
+    public static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    public static final int ORIENTATION_FLIP_VERTICAL = 4;
+    public static final int ORIENTATION_TRANSPOSE = 5;
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    public static final int ORIENTATION_TRANSVERSE = 7;
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
     /**
      * Returns the degrees in clockwise. Values are 0, 90, 180, or 270.
+     * <p/>
+     * Mirrored orientations are reported by their rotation component only. Use
+     * {@link #getExifOrientation(InputStream, long)} to also find out whether the image is
+     * flipped.
      * @param inputStream The input stream will not be closed for you.
      * @param byteSize Recommended parameter declaring the length of the input stream. If you
      *                 pass in -1, we will have to read more from the input stream.
      * @return 0, 90, 180, or 270.
      */
     public static int getOrientation(final InputStream inputStream, final long byteSize) {
+        return getRotation(getExifOrientation(inputStream, byteSize));
+    }
+
+    /**
+     * Returns the clockwise rotation in degrees for the given Exif orientation value. For
+     * mirrored values, this is the rotation to apply before flipping horizontally.
+     * @param exifOrientation One of the ORIENTATION constants.
+     * @return 0, 90, 180, or 270.
+     */
+    public static int getRotation(final int exifOrientation) {
+        switch (exifOrientation) {
+            case ORIENTATION_ROTATE_180:
+            case ORIENTATION_FLIP_VERTICAL:
+                return 180;
+            case ORIENTATION_ROTATE_90:
+            case ORIENTATION_TRANSPOSE:
+                return 90;
+            case ORIENTATION_ROTATE_270:
+            case ORIENTATION_TRANSVERSE:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns true if the given Exif orientation value requires a horizontal flip after the
+     * rotation given by {@link #getRotation(int)}.
+     * @param exifOrientation One of the ORIENTATION constants.
+     */
+    public static boolean isFlipped(final int exifOrientation) {
+        switch (exifOrientation) {
+            case ORIENTATION_FLIP_HORIZONTAL:
+            case ORIENTATION_FLIP_VERTICAL:
+            case ORIENTATION_TRANSPOSE:
+            case ORIENTATION_TRANSVERSE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the raw Exif orientation value, including the mirrored variants.
+     * @param inputStream The input stream will not be closed for you.
+     * @param byteSize Recommended parameter declaring the length of the input stream. If you
+     *                 pass in -1, we will have to read more from the input stream.
+     * @return One of the ORIENTATION constants. {@link #ORIENTATION_NORMAL} is returned if the
+     * orientation is missing or invalid.
+     */
+    public static int getExifOrientation(final InputStream inputStream, final long byteSize) {
         if (inputStream == null) {
-            return 0;
+            return ORIENTATION_NORMAL;
         }
 
         /*
@@ -78,7 +146,7 @@ public class Exif {
             final boolean possibleJpegFormat = jpeg.get(0) == (byte) 0xFF
                     && jpeg.get(1) == (byte) 0xD8;
             if (!possibleJpegFormat) {
-                return 0;
+                return ORIENTATION_NORMAL;
             }
         }
 
@@ -107,7 +175,7 @@ public class Exif {
             length = pack(jpeg, offset, 2, false);
             if (length < 2 || !has(jpeg, byteSize, offset + length - 1)) {
                 Log.e(TAG, "Invalid length");
-                return 0;
+                return ORIENTATION_NORMAL;
             }
 
             // Break if the marker is EXIF in APP1.
@@ -135,7 +203,7 @@ public class Exif {
             int tag = pack(jpeg, offset, 4, false);
             if (tag != 0x49492A00 && tag != 0x4D4D002A) {
                 Log.e(TAG, "Invalid byte order");
-                return 0;
+                return ORIENTATION_NORMAL;
             }
             final boolean littleEndian = (tag == 0x49492A00);
 
@@ -143,7 +211,7 @@ public class Exif {
             int count = pack(jpeg, offset + 4, 4, littleEndian) + 2;
             if (count < 10 || count > length) {
                 Log.e(TAG, "Invalid offset");
-                return 0;
+                return ORIENTATION_NORMAL;
             }
             offset += count;
             length -= count;
@@ -160,18 +228,12 @@ public class Exif {
                 if (tag == 0x0112) {
                     // We do not really care about type and count, do we?
                     final int orientation = pack(jpeg, offset + 8, 2, littleEndian);
-                    switch (orientation) {
-                        case 1:
-                            return 0;
-                        case 3:
-                            return 180;
-                        case 6:
-                            return 90;
-                        case 8:
-                            return 270;
+                    if (orientation >= ORIENTATION_NORMAL
+                            && orientation <= ORIENTATION_ROTATE_270) {
+                        return orientation;
                     }
                     Log.i(TAG, "Unsupported orientation");
-                    return 0;
+                    return ORIENTATION_NORMAL;
                 }
                 offset += 12;
                 length -= 12;
@@ -181,7 +243,7 @@ public class Exif {
             }
         }
 
-        return 0;
+        return ORIENTATION_NORMAL;
     }
 
     private static int pack(final InputStreamBuffer bytes, int offset, int length,
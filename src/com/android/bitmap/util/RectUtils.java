@@ -36,6 +36,32 @@ public class RectUtils {
      */
     public static void rotateRectForOrientation(final int orientation, final Rect fullRect,
             final Rect partialRect) {
+        rotateRectForOrientation(orientation, false /* flipped */, fullRect, partialRect);
+    }
+
+    /**
+     * Transform the upright full rectangle so that it bounds the original rotated and possibly
+     * mirrored image, given by the orientation and flip. Transform the upright partial rectangle
+     * such that it would apply to the same region of the transformed full rectangle.
+     *
+     * The top-left of the transformed full rectangle will always be placed at (0, 0).
+     * @param orientation The exif rotation (0, 90, 180, 270) of the original image. The
+     *                    transformed full and partial rectangles will be in this orientation's
+     *                    coordinate space.
+     * @param flipped     Whether the original image is displayed upright by flipping it
+     *                    horizontally after rotating it by the orientation.
+     * @param fullRect    The upright full rectangle. This rectangle will be modified.
+     * @param partialRect The upright partial rectangle. This rectangle will be modified.
+     */
+    public static void rotateRectForOrientation(final int orientation, final boolean flipped,
+            final Rect fullRect, final Rect partialRect) {
+        if (flipped) {
+            // The flip was applied last to make the image upright, so undo it first.
+            final int left = fullRect.left + fullRect.right - partialRect.right;
+            final int right = fullRect.left + fullRect.right - partialRect.left;
+            partialRect.left = left;
+            partialRect.right = right;
+        }
         final Matrix matrix = new Matrix();
         // Exif orientation specifies how the camera is rotated relative to the actual subject.
         // First rotate in the opposite direction.